@@ -60,6 +60,10 @@ public final class BluetoothAdapter {
 
 	private static final int ADDRESS_LENGTH = 17;
 
+	/** channels for #listenUsingRfcommWithServiceRecord */
+	private static final RfcommChannelAllocator sChannels = new RfcommChannelAllocator(
+			12, 30);
+
 	/**
 	 * Broadcast Action: The local Bluetooth adapter has finished the device
 	 * discovery process.
@@ -651,23 +655,34 @@ public final class BluetoothAdapter {
 	public BluetoothServerSocket listenUsingRfcommWithServiceRecord(
 			String name, UUID uuid) throws IOException {
 
-		for (int port = 12; port <= 30; port++) {
+		int tried = 0;
+
+		for (;;) {
+
+			int port = sChannels.acquire(tried);
+
+			if (port == -1) {
+
+				throw sChannels.exhausted();
+			}
+
+			tried |= 1 << port;
 
 			try {
 
 				BluetoothServerSocket socket = BluetoothServerSocket
 						.listenUsingRfcommOn(port);
+				socket.setChannel(sChannels, port);
 
 				Log.i(TAG, uuid + " listen on " + port);
 
 				return socket;
 			} catch (IOException e) {
 
-				// ignore;
+				sChannels.refuse(port);
 			}
 		}
 
-		throw new IOException();
 		// return BluetoothServerSocket.listenUsingRfcommOn(-1);
 	}
 
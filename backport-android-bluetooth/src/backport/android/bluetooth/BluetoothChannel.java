@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+
+import android.bluetooth.RfcommSocket;
+
+/**
+ * Blocking channel view of a #BluetoothSocket.
+ *
+ * Reads and writes go through FileChannels opened on the RFCOMM file
+ * descriptor, so direct ByteBuffers are filled and drained by the native
+ * read/write calls without an intermediate heap copy, and gathering writes
+ * become a single writev.
+ *
+ * The channel shares the connection with the socket streams. Bytes already
+ * held by a buffered input stream are returned first, and a coalescing output
+ * stream is flushed before the channel writes, so mixing both views keeps the
+ * byte order intact. Closing the channel closes the socket.
+ */
+public final class BluetoothChannel implements ByteChannel,
+		GatheringByteChannel {
+
+	/**
+	 * Default payload per write of #transferFrom. The negotiated RFCOMM frame
+	 * size is not exposed by RfcommSocket; this fits the common frame sizes
+	 * of the stack.
+	 */
+	public static final int RFCOMM_FRAME_SIZE = 1008;
+
+	/** size of each file region mapped by #transferFrom */
+	static final int MAPPING_SIZE = 256 * 1024;
+
+	private final BluetoothSocket mSocket;
+
+	private final FileChannel mReadChannel;
+
+	private final FileChannel mWriteChannel;
+
+	BluetoothChannel(BluetoothSocket socket) throws IOException {
+
+		mSocket = socket;
+
+		RfcommSocket rfcommSocket = socket.getRfcommSocket();
+		InputStream in = rfcommSocket.getInputStream();
+		OutputStream out = rfcommSocket.getOutputStream();
+
+		// RfcommSocket hands out FileInputStream/FileOutputStream on its fd.
+		if (in instanceof FileInputStream) {
+
+			mReadChannel = ((FileInputStream) in).getChannel();
+		} else {
+
+			mReadChannel = new FileInputStream(rfcommSocket
+					.getFileDescriptor()).getChannel();
+		}
+
+		if (out instanceof FileOutputStream) {
+
+			mWriteChannel = ((FileOutputStream) out).getChannel();
+		} else {
+
+			mWriteChannel = new FileOutputStream(rfcommSocket
+					.getFileDescriptor()).getChannel();
+		}
+	}
+
+	public int read(ByteBuffer dst) throws IOException {
+
+		checkOpen();
+
+		BluetoothInputStream in = mSocket.peekInputStream();
+
+		if (in != null) {
+
+			int drained = in.drainBuffered(dst);
+
+			if (drained > 0) {
+
+				return drained;
+			}
+		}
+
+		BluetoothSocketStats.Recorder stats = mSocket.getStatsRecorder();
+
+		if (stats == null) {
+
+			return mReadChannel.read(dst);
+		}
+
+		long start = System.nanoTime();
+		int read = mReadChannel.read(dst);
+		stats.recordRead(read, System.nanoTime() - start);
+
+		return read;
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+
+		checkOpen();
+		flushOutputStream();
+		throttle(src.remaining());
+
+		return writeNative(src);
+	}
+
+	/** writes src without charging the rate limiter */
+	private int writeNative(ByteBuffer src) throws IOException {
+
+		BluetoothSocketStats.Recorder stats = mSocket.getStatsRecorder();
+
+		if (stats == null) {
+
+			return mWriteChannel.write(src);
+		}
+
+		long start = System.nanoTime();
+		int written = mWriteChannel.write(src);
+		stats.recordWrite(written, System.nanoTime() - start);
+
+		return written;
+	}
+
+	public long write(ByteBuffer[] srcs) throws IOException {
+
+		return write(srcs, 0, srcs.length);
+	}
+
+	public long write(ByteBuffer[] srcs, int offset, int length)
+			throws IOException {
+
+		checkOpen();
+		flushOutputStream();
+
+		long total = 0;
+
+		for (int i = offset; i < offset + length; i++) {
+
+			total += srcs[i].remaining();
+		}
+
+		throttle(total);
+
+		BluetoothSocketStats.Recorder stats = mSocket.getStatsRecorder();
+
+		if (stats == null) {
+
+			return mWriteChannel.write(srcs, offset, length);
+		}
+
+		long start = System.nanoTime();
+		long written = mWriteChannel.write(srcs, offset, length);
+		stats.recordWrite(written, System.nanoTime() - start);
+
+		return written;
+	}
+
+	/**
+	 * Send count bytes of src, starting at position, to the peer.
+	 * 
+	 * @see #transferFrom(FileChannel, long, long, int)
+	 */
+	public long transferFrom(FileChannel src, long position, long count)
+			throws IOException {
+
+		return transferFrom(src, position, count, RFCOMM_FRAME_SIZE);
+	}
+
+	/**
+	 * Send count bytes of src, starting at position, to the peer, in writes of
+	 * chunkSize bytes. The file is memory-mapped a region at a time, so its
+	 * contents never sit on the Java heap. When the file cannot be mapped a
+	 * single direct buffer from the #BufferPool is reused instead. The position
+	 * of src is not changed.
+	 * 
+	 * @return the number of bytes sent, less than count if the file ends
+	 *         first
+	 */
+	public long transferFrom(FileChannel src, long position, long count,
+			int chunkSize) throws IOException {
+
+		if (position < 0 || count < 0 || chunkSize <= 0) {
+
+			throw new IllegalArgumentException();
+		}
+
+		long end = Math.min(position + count, src.size());
+		long sent = 0;
+		ByteBuffer direct = null;
+
+		try {
+
+			while (position + sent < end) {
+
+				long offset = position + sent;
+				long length = Math.min(MAPPING_SIZE, end - offset);
+				ByteBuffer region;
+
+				if (direct == null) {
+
+					try {
+
+						region = src.map(FileChannel.MapMode.READ_ONLY, offset,
+								length);
+					} catch (IOException e) {
+
+						direct = BufferPool.getDefault().acquireDirect(
+								chunkSize);
+						region = null;
+					}
+				} else {
+
+					region = null;
+				}
+
+				if (region != null) {
+
+					sent += writeChunked(region, chunkSize);
+
+					continue;
+				}
+
+				direct.clear();
+				direct.limit((int) Math.min(chunkSize, end - offset));
+
+				int read = src.read(direct, offset);
+
+				if (read <= 0) {
+
+					break;
+				}
+
+				direct.flip();
+				sent += writeChunked(direct, chunkSize);
+			}
+		} finally {
+
+			BufferPool.getDefault().releaseDirect(direct);
+		}
+
+		return sent;
+	}
+
+	private long writeChunked(ByteBuffer buffer, int chunkSize)
+			throws IOException {
+
+		long written = 0;
+		int limit = buffer.limit();
+
+		while (buffer.position() < limit) {
+
+			buffer.limit(Math.min(buffer.position() + chunkSize, limit));
+
+			checkOpen();
+			flushOutputStream();
+
+			// charged once per chunk, not again for the rest of a partial
+			// write.
+			throttle(buffer.remaining());
+
+			while (buffer.hasRemaining()) {
+
+				written += writeNative(buffer);
+			}
+		}
+
+		return written;
+	}
+
+	public boolean isOpen() {
+
+		return !mSocket.isClosed();
+	}
+
+	public void close() throws IOException {
+
+		mSocket.close();
+	}
+
+	private void checkOpen() throws IOException {
+
+		if (mSocket.isClosed()) {
+
+			throw new ClosedChannelException();
+		}
+	}
+
+	private void throttle(long bytes) throws IOException {
+
+		BluetoothRateLimiter limiter = mSocket.getRateLimiter();
+
+		if (limiter != null) {
+
+			limiter.acquire((int) Math.min(bytes, Integer.MAX_VALUE));
+		}
+	}
+
+	private void flushOutputStream() throws IOException {
+
+		BluetoothOutputStream out = mSocket.peekOutputStream();
+
+		if (out != null) {
+
+			out.flushBuffered();
+		}
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.bluetooth.RfcommSocket;
+import android.util.Log;
+
+/**
+ * Pending connect started by BluetoothSocket#connectAsync.
+ *
+ * The connect runs in the Bluetooth stack. No thread is used until someone
+ * waits for the result, so one thread can start connects to several devices
+ * and then call #get on each of them in turn.
+ *
+ * Waiting is done with RfcommSocket#waitForAsyncConnect in slices of at most
+ * #WAIT_SLICE_MS, so that #cancel, which needs the same native lock, gets
+ * through quickly. A slice returns as soon as the connect completes, and a
+ * waiter notices within one slice that the socket has been closed.
+ */
+public final class BluetoothConnectFuture implements Future<BluetoothSocket> {
+
+	static final int WAIT_SLICE_MS = 100;
+
+	private static final int PENDING = 0;
+
+	private static final int CONNECTED = 1;
+
+	private static final int FAILED = 2;
+
+	private static final int CANCELLED = 3;
+
+	private final BluetoothSocket mSocket;
+
+	private final RfcommSocket mRfcommSocket;
+
+	/** absolute deadline of the connect, or 0 for none */
+	private final long mDeadline;
+
+	private int mState = PENDING;
+
+	private IOException mError;
+
+	BluetoothConnectFuture(BluetoothSocket socket, int timeoutMs) {
+
+		mSocket = socket;
+		mRfcommSocket = socket.getRfcommSocket();
+		mDeadline = (timeoutMs > 0) ? System.currentTimeMillis() + timeoutMs
+				: 0;
+	}
+
+	/**
+	 * Abort the connect. The socket is left unconnected; close it if it is
+	 * not going to be used again.
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+
+		synchronized (this) {
+
+			if (mState != PENDING) {
+
+				return false;
+			}
+
+			mState = CANCELLED;
+		}
+
+		interrupt();
+
+		return true;
+	}
+
+	public synchronized boolean isCancelled() {
+
+		return mState == CANCELLED;
+	}
+
+	/**
+	 * Return true once the connect has completed, failed or been cancelled.
+	 * Checks the socket without blocking.
+	 */
+	public boolean isDone() {
+
+		if (isPending()) {
+
+			poll(0);
+		}
+
+		return !isPending();
+	}
+
+	/**
+	 * Wait for the connect to complete.
+	 *
+	 * @return the connected socket
+	 * @throws ExecutionException
+	 *             wrapping the IOException of a failed or timed out connect
+	 * @throws CancellationException
+	 *             if #cancel was called
+	 */
+	public BluetoothSocket get() throws InterruptedException,
+			ExecutionException {
+
+		while (isPending()) {
+
+			if (Thread.interrupted()) {
+
+				throw new InterruptedException();
+			}
+
+			poll(WAIT_SLICE_MS);
+		}
+
+		return result();
+	}
+
+	/**
+	 * Wait at most timeout for the connect to complete. The connect goes on
+	 * when this call times out.
+	 *
+	 * @throws TimeoutException
+	 *             if the connect is still in progress after timeout
+	 * @see #get()
+	 */
+	public BluetoothSocket get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+
+		long until = System.currentTimeMillis() + unit.toMillis(timeout);
+
+		while (isPending()) {
+
+			if (Thread.interrupted()) {
+
+				throw new InterruptedException();
+			}
+
+			long remaining = until - System.currentTimeMillis();
+
+			if (remaining <= 0) {
+
+				throw new TimeoutException();
+			}
+
+			poll((int) Math.min(remaining, WAIT_SLICE_MS));
+		}
+
+		return result();
+	}
+
+	/**
+	 * @return the socket this connect belongs to
+	 */
+	public BluetoothSocket getSocket() {
+
+		return mSocket;
+	}
+
+	private synchronized boolean isPending() {
+
+		return mState == PENDING;
+	}
+
+	private synchronized BluetoothSocket result() throws ExecutionException {
+
+		switch (mState) {
+		case CONNECTED:
+
+			return mSocket;
+
+		case CANCELLED:
+
+			throw new CancellationException();
+
+		default:
+
+			throw new ExecutionException(mError);
+		}
+	}
+
+	/**
+	 * Wait up to waitMs in the native layer and record the outcome.
+	 */
+	private void poll(int waitMs) {
+
+		if (mSocket.isClosed()) {
+
+			fail(new IOException("socket closed"));
+
+			return;
+		}
+
+		if (mDeadline > 0) {
+
+			long remaining = mDeadline - System.currentTimeMillis();
+
+			if (remaining <= 0) {
+
+				fail(new SocketTimeoutException("connect timed out"));
+				interrupt();
+
+				return;
+			}
+
+			waitMs = (int) Math.min(waitMs, remaining);
+		}
+
+		int result;
+
+		try {
+
+			result = mRfcommSocket.waitForAsyncConnect(waitMs);
+		} catch (IOException e) {
+
+			fail(e);
+
+			return;
+		}
+
+		if (result > 0) {
+
+			synchronized (this) {
+
+				if (mState == PENDING) {
+
+					mState = CONNECTED;
+				}
+			}
+		} else if (result < 0) {
+
+			fail(new IOException("connect failed"));
+		}
+	}
+
+	private synchronized void fail(IOException e) {
+
+		if (mState == PENDING) {
+
+			mState = FAILED;
+			mError = e;
+		}
+	}
+
+	private void interrupt() {
+
+		try {
+
+			mRfcommSocket.interruptAsyncConnect();
+		} catch (IOException e) {
+
+			Log.e(BluetoothSocket.TAG, BluetoothSocket.EMPTY, e);
+		}
+	}
+}
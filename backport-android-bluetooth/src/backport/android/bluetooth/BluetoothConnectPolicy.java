@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.util.Random;
+
+/**
+ * Controls how BluetoothSocket#connect retries a connection.
+ *
+ * Failed attempts are retried after an exponentially growing back-off with
+ * random jitter, so that many sockets reconnecting after a radio reset do not
+ * hit the stack in lock step. Each attempt may have its own timeout, and the
+ * whole connect may have a deadline. When the attempts are used up or the
+ * deadline passes, connect throws an IOException.
+ *
+ * The default policy makes a single attempt without a timeout.
+ */
+public final class BluetoothConnectPolicy {
+
+	private static final Random RANDOM = new Random();
+
+	private int mMaxAttempts = 1;
+
+	private int mAttemptTimeoutMs;
+
+	private int mTotalTimeoutMs;
+
+	private int mInitialBackoffMs = 100;
+
+	private int mMaxBackoffMs = 5000;
+
+	private float mBackoffMultiplier = 2f;
+
+	private float mJitter = 0.5f;
+
+	/**
+	 * Create a policy that makes a single attempt without a timeout.
+	 */
+	public BluetoothConnectPolicy() {
+	}
+
+	/**
+	 * Create a retrying policy with exponential back-off.
+	 *
+	 * @param maxAttempts
+	 *            number of attempts, at least 1
+	 * @param initialBackoffMs
+	 *            pause after the first failed attempt
+	 * @param maxBackoffMs
+	 *            upper bound of the pause between attempts
+	 * @param totalTimeoutMs
+	 *            deadline of the whole connect, or 0 for none
+	 */
+	public BluetoothConnectPolicy(int maxAttempts, int initialBackoffMs,
+			int maxBackoffMs, int totalTimeoutMs) {
+
+		setMaxAttempts(maxAttempts);
+		setBackoff(initialBackoffMs, maxBackoffMs, mBackoffMultiplier);
+		setTotalTimeout(totalTimeoutMs);
+	}
+
+	public int getMaxAttempts() {
+
+		return mMaxAttempts;
+	}
+
+	public void setMaxAttempts(int maxAttempts) {
+
+		if (maxAttempts < 1) {
+
+			throw new IllegalArgumentException("maxAttempts < 1");
+		}
+
+		mMaxAttempts = maxAttempts;
+	}
+
+	public int getAttemptTimeout() {
+
+		return mAttemptTimeoutMs;
+	}
+
+	/**
+	 * @param timeoutMs
+	 *            time allowed for each attempt, or 0 for none
+	 */
+	public void setAttemptTimeout(int timeoutMs) {
+
+		if (timeoutMs < 0) {
+
+			throw new IllegalArgumentException("timeout < 0");
+		}
+
+		mAttemptTimeoutMs = timeoutMs;
+	}
+
+	public int getTotalTimeout() {
+
+		return mTotalTimeoutMs;
+	}
+
+	/**
+	 * @param timeoutMs
+	 *            deadline of the whole connect, or 0 for none
+	 */
+	public void setTotalTimeout(int timeoutMs) {
+
+		if (timeoutMs < 0) {
+
+			throw new IllegalArgumentException("timeout < 0");
+		}
+
+		mTotalTimeoutMs = timeoutMs;
+	}
+
+	/**
+	 * @param initialMs
+	 *            pause after the first failed attempt
+	 * @param maxMs
+	 *            upper bound of the pause
+	 * @param multiplier
+	 *            growth of the pause after each further failure, at least 1
+	 */
+	public void setBackoff(int initialMs, int maxMs, float multiplier) {
+
+		if (initialMs < 0 || maxMs < initialMs || multiplier < 1f) {
+
+			throw new IllegalArgumentException();
+		}
+
+		mInitialBackoffMs = initialMs;
+		mMaxBackoffMs = maxMs;
+		mBackoffMultiplier = multiplier;
+	}
+
+	/**
+	 * @param jitter
+	 *            share of each pause that is randomized, from 0 (none) to 1
+	 *            (anywhere between 0 and the full pause)
+	 */
+	public void setJitter(float jitter) {
+
+		if (jitter < 0f || jitter > 1f) {
+
+			throw new IllegalArgumentException();
+		}
+
+		mJitter = jitter;
+	}
+
+	/**
+	 * @param failedAttempts
+	 *            number of attempts that have failed so far, at least 1
+	 * @return the pause before the next attempt
+	 */
+	long getBackoff(int failedAttempts) {
+
+		double backoff = mInitialBackoffMs;
+
+		for (int i = 1; i < failedAttempts && backoff < mMaxBackoffMs; i++) {
+
+			backoff *= mBackoffMultiplier;
+		}
+
+		backoff = Math.min(backoff, mMaxBackoffMs);
+
+		double random;
+
+		synchronized (RANDOM) {
+
+			random = RANDOM.nextDouble();
+		}
+
+		return (long) (backoff * (1.0 - mJitter * random));
+	}
+}
@@ -309,6 +309,7 @@ public final class BluetoothDevice implements Parcelable {
 		int uuid16 = BluetoothProtocols.toUUID16(uuid);
 		final HardReference<BluetoothSocket> ref = HardReference.create();
 		final HardReference<IOException> err = HardReference.create();
+		long sdpStart = System.currentTimeMillis();
 
 		try {
 
@@ -378,7 +379,14 @@ public final class BluetoothDevice implements Parcelable {
 			throw err.get();
 		}
 
-		return ref.get();
+		BluetoothSocket socket = ref.get();
+
+		if (socket != null) {
+
+			socket.setSdpTime(System.currentTimeMillis() - sdpStart);
+		}
+
+		return socket;
 	}
 
 	/**
@@ -32,34 +32,139 @@
 
 package backport.android.bluetooth;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 
 import android.bluetooth.RfcommSocket;
 import android.util.Log;
 
-class BluetoothInputStream extends InputStream {
+/**
+ * InputStream of a #BluetoothSocket.
+ * 
+ * By default every call is passed straight to the RFCOMM socket. In buffered
+ * mode (see BluetoothSocket#setInputBuffered) reads are served from a buffer
+ * borrowed from the shared #BufferPool, so small reads do not cross into the
+ * native socket one by one. The buffer is given back on #close.
+ * 
+ * The buffer adapts to the traffic: it doubles, up to #MAX_BUFFER_SIZE, when
+ * reads keep filling it, and after an idle period shrinks to the size class
+ * recent reads needed, down to #MIN_BUFFER_SIZE. Control traffic thus holds
+ * a small buffer and bulk transfers get large native reads.
+ * 
+ * With a read timeout (see BluetoothSocket#setSoTimeout) a read waits for data
+ * before it enters the native socket, and throws SocketTimeoutException when
+ * none arrived in time.
+ */
+public final class BluetoothInputStream extends InputStream {
+
+	static final int DEFAULT_BUFFER_SIZE = 1024;
+
+	static final int MIN_BUFFER_SIZE = 256;
+
+	static final int MAX_BUFFER_SIZE = 16 * 1024;
+
+	/** consecutive reads that fill the buffer before it doubles */
+	static final int GROW_AFTER_FULL_READS = 2;
+
+	/** a read that waited this long ends an idle period */
+	static final int IDLE_SHRINK_MS = 1000;
+
+	static final int MIN_READ_WAIT_MS = 1;
+
+	static final int MAX_READ_WAIT_MS = 20;
+
+	/** keeps the socket, and so its native resources, from being reaped */
+	private final BluetoothSocket mOwner;
 
 	private RfcommSocket mSocket;
 
+	/** charged with the buffer size, or null */
+	private final BluetoothMemoryBudget mBudget;
+
 	private InputStream mInputStream;
 
-	public BluetoothInputStream(RfcommSocket socket) {
+	private final boolean mBuffered;
+
+	/** protects mBuffer, mPosition, mCount, mReading and mClosed */
+	private final Object mBufferLock = new Object();
+
+	private volatile byte[] mBuffer;
+
+	private int mPosition;
+
+	private int mCount;
+
+	private boolean mReading;
+
+	/* adaptive sizing, used by the reading thread */
 
-		mSocket = socket;
+	private int mNextSize;
+
+	private int mFullReads;
+
+	private int mAverageRead;
+
+	private boolean mClosed;
+
+	private volatile int mTimeoutMs;
+
+	private volatile BluetoothSocketStats.Recorder mStats;
+
+	BluetoothInputStream(BluetoothSocket owner) {
+
+		this(owner, false);
+	}
+
+	BluetoothInputStream(BluetoothSocket owner, boolean buffered) {
+
+		mOwner = owner;
+		mSocket = owner.getRfcommSocket();
+		mBudget = owner.getMemoryBudget();
 
 		try {
 
-			mInputStream = socket.getInputStream();
+			mInputStream = mSocket.getInputStream();
 		} catch (IOException e) {
 
 			Log.e(BluetoothSocket.TAG, BluetoothSocket.EMPTY, e);
 		}
+
+		mBuffered = buffered;
+
+		if (buffered) {
+
+			mBuffer = BufferPool.getDefault().acquire(DEFAULT_BUFFER_SIZE);
+			mNextSize = mBuffer.length;
+
+			if (mBudget != null) {
+
+				mBudget.charge(mBuffer.length);
+			}
+		}
+	}
+
+	/**
+	 * Return true if reads on this stream are served from an internal buffer.
+	 */
+	public boolean isBuffered() {
+
+		return mBuffered;
 	}
 
-	
 	public int available() throws IOException {
-		return mInputStream.available();
+
+		int buffered;
+
+		synchronized (mBufferLock) {
+
+			buffered = mCount - mPosition;
+		}
+
+		return buffered + mInputStream.available();
 	}
 
 
@@ -74,36 +179,483 @@ class BluetoothInputStream extends InputStream {
 
 
 	public void mark(int readlimit) {
-		mInputStream.mark(readlimit);
+
+		if (!mBuffered) {
+
+			mInputStream.mark(readlimit);
+		}
 	}
 
 
 	public boolean markSupported() {
-		return mInputStream.markSupported();
+
+		return !mBuffered && mInputStream.markSupported();
 	}
 
 
 	public int read() throws IOException {
-		return mInputStream.read();
+
+		if (!mBuffered) {
+
+			awaitReadable();
+
+			return readNative();
+		}
+
+		for (;;) {
+
+			// under the lock, so that close() cannot give the buffer back to
+			// the pool while it is read.
+			synchronized (mBufferLock) {
+
+				checkOpen();
+
+				if (mPosition < mCount) {
+
+					return mBuffer[mPosition++] & 0xff;
+				}
+			}
+
+			if (!fill()) {
+
+				return -1;
+			}
+		}
 	}
 
 
 	public int read(byte[] b, int offset, int length) throws IOException {
-		return mInputStream.read(b, offset, length);
+
+		if (!mBuffered) {
+
+			awaitReadable();
+
+			return readNative(b, offset, length);
+		}
+
+		if (length == 0) {
+
+			return 0;
+		}
+
+		for (;;) {
+
+			boolean large;
+
+			synchronized (mBufferLock) {
+
+				checkOpen();
+
+				int buffered = mCount - mPosition;
+
+				if (buffered > 0) {
+
+					int n = Math.min(buffered, length);
+					System.arraycopy(mBuffer, mPosition, b, offset, n);
+					mPosition += n;
+
+					return n;
+				}
+
+				large = length >= mBuffer.length;
+			}
+
+			// nothing buffered and a large request: skip the extra copy.
+			if (large) {
+
+				awaitReadable();
+
+				return readNative(b, offset, length);
+			}
+
+			if (!fill()) {
+
+				return -1;
+			}
+		}
 	}
 
 
 	public int read(byte[] b) throws IOException {
-		return mInputStream.read(b);
+		return read(b, 0, b.length);
+	}
+
+	/**
+	 * Read exactly length bytes into b, blocking until they have all arrived.
+	 * 
+	 * @throws EOFException
+	 *             if the stream ends before length bytes were read
+	 */
+	public void readFully(byte[] b, int offset, int length) throws IOException {
+
+		while (length > 0) {
+
+			int read = read(b, offset, length);
+
+			if (read == -1) {
+
+				throw new EOFException();
+			}
+
+			offset += read;
+			length -= read;
+		}
+	}
+
+	/**
+	 * Read a big-endian 32 bit integer.
+	 */
+	public int readInt() throws IOException {
+
+		int b1 = readByte();
+		int b2 = readByte();
+		int b3 = readByte();
+		int b4 = readByte();
+
+		return (b1 << 24) | (b2 << 16) | (b3 << 8) | b4;
+	}
+
+	/**
+	 * Read a big-endian 16 bit integer.
+	 */
+	public short readShort() throws IOException {
+
+		int b1 = readByte();
+		int b2 = readByte();
+
+		return (short) ((b1 << 8) | b2);
 	}
 
+	/**
+	 * Read one length-prefixed frame: a big-endian 32 bit length (see
+	 * #readInt) followed by that many bytes.
+	 * 
+	 * @param maxLen
+	 *            largest payload the caller is prepared to accept
+	 * @return the payload of the frame
+	 * @throws IOException
+	 *             if the announced length is negative or exceeds maxLen
+	 * @throws EOFException
+	 *             if the stream ends in the middle of a frame
+	 */
+	public byte[] readFrame(int maxLen) throws IOException {
+
+		int length = readInt();
+
+		if (length < 0 || length > maxLen) {
+
+			throw new IOException("invalid frame length " + length);
+		}
+
+		byte[] frame = new byte[length];
+		readFully(frame, 0, length);
+
+		return frame;
+	}
+
+	/**
+	 * Move bytes that are already buffered into dst, without touching the
+	 * native socket. Used by #BluetoothChannel so both views see one stream.
+	 * 
+	 * @return the number of bytes moved
+	 */
+	int drainBuffered(ByteBuffer dst) {
+
+		synchronized (mBufferLock) {
+
+			if (mBuffer == null) {
+
+				return 0;
+			}
+
+			int n = Math.min(mCount - mPosition, dst.remaining());
+
+			if (n > 0) {
+
+				dst.put(mBuffer, mPosition, n);
+				mPosition += n;
+			}
+
+			return n;
+		}
+	}
+
+	private int readByte() throws IOException {
+
+		int b = read();
+
+		if (b == -1) {
+
+			throw new EOFException();
+		}
+
+		return b;
+	}
+
+	/**
+	 * Refill the buffer with a single native read, first resizing it if the
+	 * previous reads asked for that.
+	 * 
+	 * @return false at end of stream
+	 */
+	private boolean fill() throws IOException {
+
+		long start = System.nanoTime();
+
+		awaitReadable();
+
+		byte[] buffer;
+
+		synchronized (mBufferLock) {
+
+			checkOpen();
+
+			buffer = mBuffer;
+
+			// growing is optional: skip it when over the memory budget.
+			if (mBudget != null && mNextSize > buffer.length
+					&& !mBudget.tryCharge(mNextSize - buffer.length)) {
+
+				mNextSize = buffer.length;
+			}
+
+			if (mNextSize != buffer.length) {
+
+				BufferPool pool = BufferPool.getDefault();
+				pool.release(buffer);
+
+				if (mBudget != null && mNextSize < buffer.length) {
+
+					mBudget.release(buffer.length - mNextSize);
+				}
+
+				buffer = pool.acquire(mNextSize);
+				mBuffer = buffer;
+			}
+
+			mPosition = 0;
+			mCount = 0;
+			mReading = true;
+		}
+
+		int read = -1;
+		boolean closed;
+
+		try {
+
+			read = readNative(buffer, 0, buffer.length);
+		} finally {
+
+			synchronized (mBufferLock) {
+
+				mReading = false;
+				closed = mClosed;
+
+				// close() ran while we were blocked in the native read.
+				if (closed) {
+
+					releaseBuffer();
+				} else if (read > 0) {
+
+					mCount = read;
+				}
+			}
+		}
+
+		if (closed) {
+
+			throw new IOException("stream closed");
+		}
+
+		if (read == -1) {
+
+			return false;
+		}
+
+		adapt(read, buffer.length, System.nanoTime() - start);
+
+		return true;
+	}
+
+	/**
+	 * Pick the size of the next buffer from the read just done: grow when
+	 * reads keep filling the buffer, and after the connection was idle shrink
+	 * to what recent reads needed.
+	 */
+	private void adapt(int read, int capacity, long nanos) {
+
+		if (read >= capacity) {
+
+			if (++mFullReads >= GROW_AFTER_FULL_READS
+					&& capacity < MAX_BUFFER_SIZE) {
+
+				mNextSize = capacity * 2;
+				mFullReads = 0;
+			}
+		} else {
+
+			mFullReads = 0;
+		}
+
+		mAverageRead += (read - mAverageRead) / 4;
+
+		if (nanos >= IDLE_SHRINK_MS * 1000000L) {
+
+			int fit = MIN_BUFFER_SIZE;
+
+			while (fit < 2 * mAverageRead && fit < capacity) {
+
+				fit <<= 1;
+			}
+
+			if (fit < capacity) {
+
+				mNextSize = fit;
+				mFullReads = 0;
+			}
+		}
+	}
+
+	/**
+	 * @return the current size of the read buffer, or 0 when the stream is
+	 *         not buffered
+	 */
+	public int getBufferSize() {
+
+		byte[] buffer = mBuffer;
+
+		return (buffer == null) ? 0 : buffer.length;
+	}
+
+	void setStats(BluetoothSocketStats.Recorder stats) {
+
+		mStats = stats;
+	}
+
+	private int readNative() throws IOException {
+
+		BluetoothSocketStats.Recorder stats = mStats;
+
+		if (stats == null) {
+
+			return mInputStream.read();
+		}
+
+		long start = System.nanoTime();
+		int b = mInputStream.read();
+		stats.recordRead((b == -1) ? 0 : 1, System.nanoTime() - start);
+
+		return b;
+	}
+
+	private int readNative(byte[] b, int offset, int length)
+			throws IOException {
+
+		BluetoothSocketStats.Recorder stats = mStats;
+
+		if (stats == null) {
+
+			return mInputStream.read(b, offset, length);
+		}
+
+		long start = System.nanoTime();
+		int read = mInputStream.read(b, offset, length);
+		stats.recordRead(read, System.nanoTime() - start);
+
+		return read;
+	}
+
+	void setTimeout(int timeoutMs) {
+
+		mTimeoutMs = timeoutMs;
+	}
+
+	/**
+	 * With a timeout set, wait until the native socket has data, the peer has
+	 * gone (the read that follows then reports end of stream), or the timeout
+	 * expires. The wait backs off from #MIN_READ_WAIT_MS to #MAX_READ_WAIT_MS
+	 * and is cut short by #close.
+	 */
+	private void awaitReadable() throws IOException {
+
+		int timeoutMs = mTimeoutMs;
+
+		if (timeoutMs <= 0 || mInputStream.available() > 0) {
+
+			return;
+		}
+
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		long wait = MIN_READ_WAIT_MS;
+
+		while (mInputStream.available() == 0) {
+
+			if (!mSocket.isInputConnected()) {
+
+				return;
+			}
+
+			long remaining = deadline - System.currentTimeMillis();
+
+			if (remaining <= 0) {
+
+				throw new SocketTimeoutException("read timed out after "
+						+ timeoutMs + "ms");
+			}
+
+			synchronized (mBufferLock) {
+
+				if (mClosed) {
+
+					throw new IOException("stream closed");
+				}
+
+				try {
+
+					mBufferLock.wait(Math.min(wait, remaining));
+				} catch (InterruptedException e) {
+
+					throw new InterruptedIOException();
+				}
+			}
+
+			wait = Math.min(wait * 2, MAX_READ_WAIT_MS);
+		}
+	}
 
 	public void reset() throws IOException {
+
+		if (mBuffered) {
+
+			throw new IOException("mark/reset not supported");
+		}
+
 		mInputStream.reset();
 	}
 
 
 	public long skip(long n) throws IOException {
+
+		if (!mBuffered || n <= 0) {
+
+			return mInputStream.skip(n);
+		}
+
+		synchronized (mBufferLock) {
+
+			checkOpen();
+
+			int buffered = mCount - mPosition;
+
+			if (buffered > 0) {
+
+				int skipped = (int) Math.min(buffered, n);
+				mPosition += skipped;
+
+				return skipped;
+			}
+		}
+
 		return mInputStream.skip(n);
 	}
 
@@ -113,16 +665,11 @@ class BluetoothInputStream extends InputStream {
 	}
 
 
-	@Override
-	protected void finalize() throws Throwable {
-
-		super.finalize();
-		close();
-	}
-
 	@Override
 	public void close() throws IOException {
 
+		abort();
+
 		try {
 
 			super.close();
@@ -132,4 +679,54 @@ class BluetoothInputStream extends InputStream {
 			Log.e(BluetoothSocket.TAG, BluetoothSocket.EMPTY, e);
 		}
 	}
+
+	/**
+	 * Close the stream without touching the native socket, for a socket that
+	 * has already been destroyed.
+	 */
+	void abort() {
+
+		synchronized (mBufferLock) {
+
+			// wake a reader waiting for its timeout.
+			mBufferLock.notifyAll();
+
+			if (!mClosed) {
+
+				mClosed = true;
+
+				// a blocked reader gives the buffer back when it wakes up.
+				if (!mReading) {
+
+					releaseBuffer();
+				}
+			}
+		}
+	}
+
+	/** called with mBufferLock held */
+	private void checkOpen() throws IOException {
+
+		if (mClosed) {
+
+			throw new IOException("stream closed");
+		}
+	}
+
+	/** called with mBufferLock held */
+	private void releaseBuffer() {
+
+		if (mBuffer != null) {
+
+			if (mBudget != null) {
+
+				mBudget.release(mBuffer.length);
+			}
+
+			BufferPool.getDefault().release(mBuffer);
+			mBuffer = null;
+			mPosition = 0;
+			mCount = 0;
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import android.util.Log;
+
+/**
+ * Memory budget of one connection, set with BluetoothSocket#setMemoryBudget.
+ *
+ * The buffer of the input stream, messages waiting in the send queue,
+ * messages being assembled by #MessageSocket and the stream buffers of a
+ * #BluetoothMultiplexer are charged to the budget of their socket. When a
+ * charge would exceed the limit the policy decides:
+ * <ul>
+ * <li>#POLICY_PAUSE_READING waits until enough is released. Readers stop
+ * taking data off the link, so the peer is held back by RFCOMM flow control;
+ * senders block.</li>
+ * <li>#POLICY_DROP discards what did not fit: the message, or the stream.</li>
+ * <li>#POLICY_CLOSE closes the socket.</li>
+ * </ul>
+ * A single charge larger than the whole limit is let through when nothing
+ * else is charged, so that pausing cannot wait forever. Closing the socket
+ * ends the wait with an IOException.
+ */
+public final class BluetoothMemoryBudget {
+
+	private static final String TAG = BluetoothMemoryBudget.class
+			.getSimpleName();
+
+	public static final int POLICY_PAUSE_READING = 0;
+
+	public static final int POLICY_DROP = 1;
+
+	public static final int POLICY_CLOSE = 2;
+
+	private final BluetoothSocket mSocket;
+
+	private final long mLimit;
+
+	private final int mPolicy;
+
+	private long mUsed;
+
+	private long mPeak;
+
+	private long mExceeded;
+
+	BluetoothMemoryBudget(BluetoothSocket socket, long limit, int policy) {
+
+		if (limit <= 0) {
+
+			throw new IllegalArgumentException("limit");
+		}
+
+		if (policy < POLICY_PAUSE_READING || policy > POLICY_CLOSE) {
+
+			throw new IllegalArgumentException("policy");
+		}
+
+		mSocket = socket;
+		mLimit = limit;
+		mPolicy = policy;
+	}
+
+	public long getLimit() {
+
+		return mLimit;
+	}
+
+	public int getPolicy() {
+
+		return mPolicy;
+	}
+
+	/**
+	 * @return bytes currently charged
+	 */
+	public synchronized long getUsed() {
+
+		return mUsed;
+	}
+
+	/**
+	 * @return the most bytes charged at the same time
+	 */
+	public synchronized long getPeak() {
+
+		return mPeak;
+	}
+
+	/**
+	 * @return how often a charge did not fit the budget
+	 */
+	public synchronized long getExceededCount() {
+
+		return mExceeded;
+	}
+
+	/**
+	 * Charge bytes under the policy of this budget.
+	 *
+	 * @return false if the policy is #POLICY_DROP and the bytes did not fit;
+	 *         the caller discards what it wanted to keep
+	 * @throws IOException
+	 *             if the policy is #POLICY_CLOSE and the bytes did not fit;
+	 *             the socket has been closed
+	 */
+	boolean admit(int bytes) throws IOException {
+
+		return admit(bytes, true);
+	}
+
+	/**
+	 * @param mayWait
+	 *            false where waiting could block the thread that releases
+	 *            memory; #POLICY_PAUSE_READING then behaves like #POLICY_DROP
+	 */
+	boolean admit(int bytes, boolean mayWait) throws IOException {
+
+		synchronized (this) {
+
+			if (tryCharge(bytes)) {
+
+				return true;
+			}
+
+			mExceeded++;
+
+			if (mPolicy == POLICY_DROP
+					|| (mPolicy == POLICY_PAUSE_READING && !mayWait)) {
+
+				return false;
+			}
+
+			if (mPolicy == POLICY_PAUSE_READING) {
+
+				while (!tryCharge(bytes)) {
+
+					if (mSocket.isClosed()) {
+
+						throw new IOException("socket closed");
+					}
+
+					try {
+
+						wait();
+					} catch (InterruptedException e) {
+
+						throw new InterruptedIOException();
+					}
+				}
+
+				return true;
+			}
+		}
+
+		Log.w(TAG, "closing " + mSocket.getAddress() + ": over budget of "
+				+ mLimit + " bytes");
+		mSocket.close();
+
+		throw new IOException("memory budget exceeded");
+	}
+
+	/**
+	 * Charge bytes only if they fit, whatever the policy. For optional
+	 * memory, such as growing a buffer.
+	 */
+	synchronized boolean tryCharge(int bytes) {
+
+		if (mUsed > 0 && mUsed + bytes > mLimit) {
+
+			return false;
+		}
+
+		mUsed += bytes;
+		mPeak = Math.max(mPeak, mUsed);
+
+		return true;
+	}
+
+	/**
+	 * Charge bytes that cannot be refused.
+	 */
+	synchronized void charge(int bytes) {
+
+		mUsed += bytes;
+		mPeak = Math.max(mPeak, mUsed);
+	}
+
+	synchronized void release(int bytes) {
+
+		mUsed -= bytes;
+		notifyAll();
+	}
+
+	/**
+	 * Wake the charges waiting for memory; called when the socket closes.
+	 */
+	synchronized void wakeUp() {
+
+		notifyAll();
+	}
+
+	@Override
+	public synchronized String toString() {
+
+		return "BluetoothMemoryBudget[used=" + mUsed + "/" + mLimit
+				+ ", peak=" + mPeak + ", exceeded=" + mExceeded + "]";
+	}
+}
@@ -0,0 +1,1101 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+import android.util.Log;
+
+/**
+ * Carries many independent logical streams over one #BluetoothSocket, so a
+ * pair of devices needs a single RFCOMM channel however many conversations
+ * they hold.
+ *
+ * Every frame on the link is a five byte header - type, stream id and
+ * payload length, the last two as big-endian unsigned shorts - followed by
+ * the payload. Payloads are at most #MAX_PAYLOAD bytes so that one frame fits
+ * an RFCOMM frame.
+ *
+ * Each stream has a credit based flow-control window: a sender may have at
+ * most the window size in flight, and the receiver grants more credit as the
+ * application consumes data. A stream whose reader falls behind therefore
+ * stops only itself. A single writer thread serves the streams that have
+ * data and credit one frame at a time, so a bulk transfer cannot hold back
+ * the other streams. Control frames go first.
+ *
+ * Every stream sends in one of three lanes, #PRIORITY_HIGH for latency
+ * sensitive messages such as state updates and heartbeats, #PRIORITY_NORMAL
+ * and #PRIORITY_BULK. At each frame boundary the writer takes the highest
+ * lane that has a stream ready, and serves the streams of a lane in round
+ * robin, so a high priority message waits at most for the frame on the wire.
+ * The time data waits in each lane is kept in a #LatencyHistogram, see
+ * #getLaneLatency. Priorities only order the local sends; the peer picks its
+ * own.
+ *
+ * Both ends must use the same window size, and agree on who opens which
+ * stream ids, for example even ids on the client and odd ids on the server.
+ *
+ * The send and receive buffers of every stream, two windows, are borrowed
+ * from the #BufferPool and given back once the stream is closed in that
+ * direction and, for the receive buffer, read to the end. They are charged to
+ * the #BluetoothMemoryBudget of the socket, if it has one. A stream opened by
+ * the peer that does not fit is refused: the peer sees it closed at once.
+ * Waiting for memory there could stall the reader that frees it, so
+ * BluetoothMemoryBudget#POLICY_PAUSE_READING refuses too.
+ */
+public final class BluetoothMultiplexer implements Closeable {
+
+	private static final String TAG = BluetoothMultiplexer.class
+			.getSimpleName();
+
+	static final int TYPE_OPEN = 0;
+
+	static final int TYPE_DATA = 1;
+
+	static final int TYPE_WINDOW = 2;
+
+	static final int TYPE_CLOSE = 3;
+
+	static final int HEADER_SIZE = 5;
+
+	public static final int MAX_PAYLOAD = BluetoothChannel.RFCOMM_FRAME_SIZE
+			- HEADER_SIZE;
+
+	public static final int MAX_STREAM_ID = 0xffff;
+
+	public static final int DEFAULT_WINDOW = 16 * 1024;
+
+	public static final int PRIORITY_BULK = 0;
+
+	public static final int PRIORITY_NORMAL = 1;
+
+	public static final int PRIORITY_HIGH = 2;
+
+	private static final int LANES = PRIORITY_HIGH + 1;
+
+	/**
+	 * One logical stream of a #BluetoothMultiplexer.
+	 */
+	public final class Stream implements Closeable {
+
+		private final int mId;
+
+		/* send side, guarded by mLock */
+
+		/** ring buffer of mWindow bytes, null once released */
+		private byte[] mPending;
+
+		private int mPendingStart;
+
+		private int mPendingCount;
+
+		/** credit granted by the peer */
+		private int mSendWindow;
+
+		private int mPriority;
+
+		/** since when this stream has been waiting for its next frame */
+		private long mPendingSince;
+
+		private boolean mLocalClosed;
+
+		private boolean mCloseSent;
+
+		private boolean mCloseReceived;
+
+		/* receive side, guarded by this */
+
+		/** ring buffer of mWindow bytes, null once released */
+		private byte[] mReceived;
+
+		private int mReceivedStart;
+
+		private int mReceivedCount;
+
+		/** bytes consumed but not yet granted back to the peer */
+		private int mConsumed;
+
+		private boolean mRemoteClosed;
+
+		private boolean mLinkFailed;
+
+		private final byte[] mReadByte = new byte[1];
+
+		private final byte[] mWriteByte = new byte[1];
+
+		private final InputStream mInputStream = new InputStream() {
+
+			public int read() throws IOException {
+
+				synchronized (mReadByte) {
+
+					return (read(mReadByte, 0, 1) == -1) ? -1
+							: mReadByte[0] & 0xff;
+				}
+			}
+
+			public int read(byte[] b, int offset, int length)
+					throws IOException {
+
+				return receive(b, offset, length);
+			}
+
+			public int available() {
+
+				synchronized (Stream.this) {
+
+					return mReceivedCount;
+				}
+			}
+
+			public void close() throws IOException {
+
+				Stream.this.close();
+			}
+		};
+
+		private final OutputStream mOutputStream = new OutputStream() {
+
+			public void write(int b) throws IOException {
+
+				synchronized (mWriteByte) {
+
+					mWriteByte[0] = (byte) b;
+					write(mWriteByte, 0, 1);
+				}
+			}
+
+			public void write(byte[] b, int offset, int length)
+					throws IOException {
+
+				send(Stream.this, b, offset, length);
+			}
+
+			public void flush() throws IOException {
+
+				drain(Stream.this);
+			}
+
+			public void close() throws IOException {
+
+				Stream.this.close();
+			}
+		};
+
+		Stream(int id, int priority) {
+
+			mId = id;
+			mPriority = priority;
+			mPending = BufferPool.getDefault().acquire(mWindow);
+			mSendWindow = mWindow;
+			mReceived = BufferPool.getDefault().acquire(mWindow);
+		}
+
+		public int getId() {
+
+			return mId;
+		}
+
+		public int getPriority() {
+
+			synchronized (mLock) {
+
+				return mPriority;
+			}
+		}
+
+		/**
+		 * Move this stream to another lane. Takes effect at the next frame.
+		 */
+		public void setPriority(int priority) {
+
+			checkPriority(priority);
+
+			synchronized (mLock) {
+
+				mPriority = priority;
+			}
+		}
+
+		public InputStream getInputStream() {
+
+			return mInputStream;
+		}
+
+		/**
+		 * Writes block while the local send buffer of this stream, one window
+		 * in size, is full.
+		 */
+		public OutputStream getOutputStream() {
+
+			return mOutputStream;
+		}
+
+		/**
+		 * Finish sending: data already written is still delivered, then the
+		 * peer sees end of stream.
+		 */
+		public void close() throws IOException {
+
+			synchronized (mLock) {
+
+				if (mLocalClosed) {
+
+					return;
+				}
+
+				mLocalClosed = true;
+
+				if (mPendingCount == 0) {
+
+					sendClose(this);
+				}
+
+				mLock.notifyAll();
+			}
+		}
+
+		private int receive(byte[] b, int offset, int length)
+				throws IOException {
+
+			if (length == 0) {
+
+				return 0;
+			}
+
+			int n;
+			int credit = 0;
+
+			synchronized (this) {
+
+				while (mReceivedCount == 0) {
+
+					releaseReceived();
+
+					if (mRemoteClosed) {
+
+						return -1;
+					}
+
+					checkUsable();
+
+					try {
+
+						wait();
+					} catch (InterruptedException e) {
+
+						throw new InterruptedIOException();
+					}
+				}
+
+				n = Math.min(length, mReceivedCount);
+				int first = Math.min(n, mWindow - mReceivedStart);
+				System.arraycopy(mReceived, mReceivedStart, b, offset, first);
+				System.arraycopy(mReceived, 0, b, offset + first, n - first);
+				mReceivedStart = (mReceivedStart + n) % mWindow;
+				mReceivedCount -= n;
+				releaseReceived();
+
+				mConsumed += n;
+
+				if (mConsumed >= mWindow / 2 && !mRemoteClosed) {
+
+					credit = mConsumed;
+					mConsumed = 0;
+				}
+			}
+
+			if (credit > 0) {
+
+				sendWindowUpdate(this, credit);
+			}
+
+			return n;
+		}
+
+		/** called by the reader thread */
+		synchronized void deliver(byte[] data, int length) throws IOException {
+
+			if (mRemoteClosed) {
+
+				throw new IOException("stream " + mId
+						+ ": data after close");
+			}
+
+			if (length > mWindow - mReceivedCount) {
+
+				throw new IOException("stream " + mId
+						+ ": peer exceeded its window");
+			}
+
+			int end = (mReceivedStart + mReceivedCount) % mWindow;
+			int first = Math.min(length, mWindow - end);
+			System.arraycopy(data, 0, mReceived, end, first);
+			System.arraycopy(data, first, mReceived, 0, length - first);
+			mReceivedCount += length;
+			notifyAll();
+		}
+
+		synchronized void remoteClose() {
+
+			mRemoteClosed = true;
+			releaseReceived();
+			notifyAll();
+		}
+
+		synchronized void linkFailed() {
+
+			mLinkFailed = true;
+			releaseReceived();
+			notifyAll();
+		}
+
+		/**
+		 * Give the receive buffer back once nothing more can be read from it.
+		 * Called with the stream lock held.
+		 */
+		private void releaseReceived() {
+
+			if (mReceived != null && mReceivedCount == 0
+					&& (mRemoteClosed || mLinkFailed)) {
+
+				BufferPool.getDefault().release(mReceived);
+				mReceived = null;
+			}
+		}
+	}
+
+	private final BluetoothSocket mSocket;
+
+	private final InputStream mIn;
+
+	private final OutputStream mOut;
+
+	private final int mWindow;
+
+	private final BluetoothMemoryBudget mBudget;
+
+	/** guards the send side of all streams and the fields below */
+	private final Object mLock = new Object();
+
+	private final HashMap<Integer, Stream> mStreams = new HashMap<Integer, Stream>();
+
+	private final ArrayList<Stream> mSchedule = new ArrayList<Stream>();
+
+	private final LinkedList<Stream> mAccepted = new LinkedList<Stream>();
+
+	private final LinkedList<byte[]> mControl = new LinkedList<byte[]>();
+
+	/** round robin position of each lane in mSchedule */
+	private final int[] mCursor = new int[LANES];
+
+	private final LatencyHistogram[] mLaneLatency = new LatencyHistogram[LANES];
+
+	private final HashSet<Integer> mRefused = new HashSet<Integer>();
+
+	/** stream memory was given back to the budget when the link failed */
+	private boolean mBudgetReleased;
+
+	private IOException mError;
+
+	private boolean mClosed;
+
+	/**
+	 * Multiplex streams over a connected socket with the default window.
+	 */
+	public BluetoothMultiplexer(BluetoothSocket socket) throws IOException {
+
+		this(socket, DEFAULT_WINDOW);
+	}
+
+	/**
+	 * @param window
+	 *            flow-control window of each stream, the same on both ends
+	 */
+	public BluetoothMultiplexer(BluetoothSocket socket, int window)
+			throws IOException {
+
+		if (window < MAX_PAYLOAD) {
+
+			throw new IllegalArgumentException("window < " + MAX_PAYLOAD);
+		}
+
+		mSocket = socket;
+		mBudget = socket.getMemoryBudget();
+		mIn = socket.getInputStream();
+		mOut = socket.getOutputStream();
+		mWindow = window;
+
+		for (int i = 0; i < LANES; i++) {
+
+			mLaneLatency[i] = new LatencyHistogram();
+		}
+
+		Thread reader = new Thread(new Runnable() {
+
+			public void run() {
+
+				readLoop();
+			}
+		}, TAG + "-reader");
+		reader.setDaemon(true);
+
+		Thread writer = new Thread(new Runnable() {
+
+			public void run() {
+
+				writeLoop();
+			}
+		}, TAG + "-writer");
+		writer.setDaemon(true);
+
+		reader.start();
+		writer.start();
+	}
+
+	/**
+	 * Open a stream in the #PRIORITY_NORMAL lane.
+	 *
+	 * @see #openStream(int, int)
+	 */
+	public Stream openStream(int id) throws IOException {
+
+		return openStream(id, PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Open a stream. The peer receives it from #acceptStream.
+	 *
+	 * @throws IOException
+	 *             if the id is in use or the link has failed
+	 */
+	public Stream openStream(int id, int priority) throws IOException {
+
+		if (id < 0 || id > MAX_STREAM_ID) {
+
+			throw new IllegalArgumentException("id");
+		}
+
+		checkPriority(priority);
+
+		if (mBudget != null && !mBudget.admit(2 * mWindow)) {
+
+			throw new IOException("memory budget exceeded");
+		}
+
+		synchronized (mLock) {
+
+			if (mStreams.containsKey(id) || mError != null || mClosed) {
+
+				if (mBudget != null) {
+
+					mBudget.release(2 * mWindow);
+				}
+
+				checkUsable();
+
+				throw new IOException("stream " + id + " already open");
+			}
+
+			Stream stream = new Stream(id, priority);
+			mStreams.put(id, stream);
+			mSchedule.add(stream);
+			mControl.addLast(header(TYPE_OPEN, id, 0));
+			mLock.notifyAll();
+
+			return stream;
+		}
+	}
+
+	/**
+	 * Wait for the peer to open a stream.
+	 */
+	public Stream acceptStream() throws IOException {
+
+		synchronized (mLock) {
+
+			while (mAccepted.isEmpty()) {
+
+				checkUsable();
+
+				try {
+
+					mLock.wait();
+				} catch (InterruptedException e) {
+
+					throw new InterruptedIOException();
+				}
+			}
+
+			return mAccepted.removeFirst();
+		}
+	}
+
+	/**
+	 * @return how long streams of the lane waited, with data to send, for
+	 *         their next frame to go to the socket
+	 */
+	public LatencyHistogram getLaneLatency(int priority) {
+
+		checkPriority(priority);
+
+		return mLaneLatency[priority].snapshot();
+	}
+
+	/**
+	 * Close the link and every stream on it.
+	 */
+	public void close() throws IOException {
+
+		synchronized (mLock) {
+
+			mClosed = true;
+		}
+
+		fail(new IOException("multiplexer closed"));
+		mSocket.close();
+	}
+
+	private static void checkPriority(int priority) {
+
+		if (priority < PRIORITY_BULK || priority > PRIORITY_HIGH) {
+
+			throw new IllegalArgumentException("priority");
+		}
+	}
+
+	private void checkUsable() throws IOException {
+
+		synchronized (mLock) {
+
+			if (mError != null) {
+
+				IOException e = new IOException("link failed");
+				e.initCause(mError);
+
+				throw e;
+			}
+
+			if (mClosed) {
+
+				throw new IOException("multiplexer closed");
+			}
+		}
+	}
+
+	private void send(Stream stream, byte[] b, int offset, int length)
+			throws IOException {
+
+		synchronized (mLock) {
+
+			while (length > 0) {
+
+				// also when closed while this waited for room.
+				if (stream.mLocalClosed) {
+
+					throw new IOException("stream " + stream.mId + " closed");
+				}
+
+				checkUsable();
+
+				int room = mWindow - stream.mPendingCount;
+
+				if (room == 0) {
+
+					try {
+
+						mLock.wait();
+					} catch (InterruptedException e) {
+
+						throw new InterruptedIOException();
+					}
+
+					continue;
+				}
+
+				if (stream.mPendingCount == 0) {
+
+					stream.mPendingSince = System.nanoTime();
+				}
+
+				int n = Math.min(room, length);
+				int end = (stream.mPendingStart + stream.mPendingCount)
+						% mWindow;
+				int first = Math.min(n, mWindow - end);
+				System.arraycopy(b, offset, stream.mPending, end, first);
+				System.arraycopy(b, offset + first, stream.mPending, 0, n
+						- first);
+				stream.mPendingCount += n;
+				offset += n;
+				length -= n;
+				mLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Wait until everything written to stream has gone to the socket.
+	 */
+	private void drain(Stream stream) throws IOException {
+
+		synchronized (mLock) {
+
+			while (stream.mPendingCount > 0) {
+
+				checkUsable();
+
+				try {
+
+					mLock.wait();
+				} catch (InterruptedException e) {
+
+					throw new InterruptedIOException();
+				}
+			}
+		}
+	}
+
+	/** must be called with mLock held */
+	private void sendClose(Stream stream) {
+
+		mControl.addLast(header(TYPE_CLOSE, stream.mId, 0));
+		stream.mCloseSent = true;
+		retireIfDone(stream);
+		mLock.notifyAll();
+	}
+
+	/**
+	 * Forget a stream closed in both directions, so its id can be reused.
+	 *
+	 * must be called with mLock held.
+	 */
+	private void retireIfDone(Stream stream) {
+
+		if (!stream.mCloseSent || !stream.mCloseReceived) {
+
+			return;
+		}
+
+		int index = mSchedule.indexOf(stream);
+		mSchedule.remove(index);
+
+		for (int i = 0; i < LANES; i++) {
+
+			if (mCursor[i] > index) {
+
+				mCursor[i]--;
+			}
+		}
+
+		mStreams.remove(stream.mId);
+		releasePending(stream);
+		releaseStreamMemory(1);
+	}
+
+	/** must be called with mLock held */
+	private static void releasePending(Stream stream) {
+
+		if (stream.mPending != null) {
+
+			BufferPool.getDefault().release(stream.mPending);
+			stream.mPending = null;
+		}
+	}
+
+	/** must be called with mLock held */
+	private void releaseStreamMemory(int streams) {
+
+		if (mBudget != null && !mBudgetReleased) {
+
+			mBudget.release(streams * 2 * mWindow);
+		}
+	}
+
+	private void acceptOpen(int id) throws IOException {
+
+		if (mBudget != null && !mBudget.admit(2 * mWindow, false)) {
+
+			Log.w(TAG, "refused stream " + id + ": over memory budget");
+
+			synchronized (mLock) {
+
+				mRefused.add(id);
+				mControl.addLast(header(TYPE_CLOSE, id, 0));
+				mLock.notifyAll();
+			}
+
+			return;
+		}
+
+		synchronized (mLock) {
+
+			if (mStreams.containsKey(id)) {
+
+				if (mBudget != null) {
+
+					mBudget.release(2 * mWindow);
+				}
+
+				throw new IOException("stream " + id + " opened twice");
+			}
+
+			Stream stream = new Stream(id, PRIORITY_NORMAL);
+			mStreams.put(id, stream);
+			mSchedule.add(stream);
+			mAccepted.addLast(stream);
+			mLock.notifyAll();
+		}
+	}
+
+	private void sendWindowUpdate(Stream stream, int credit) {
+
+		byte[] frame = header(TYPE_WINDOW, stream.mId, 4);
+		frame[HEADER_SIZE] = (byte) (credit >>> 24);
+		frame[HEADER_SIZE + 1] = (byte) (credit >>> 16);
+		frame[HEADER_SIZE + 2] = (byte) (credit >>> 8);
+		frame[HEADER_SIZE + 3] = (byte) credit;
+
+		synchronized (mLock) {
+
+			mControl.addLast(frame);
+			mLock.notifyAll();
+		}
+	}
+
+	private static byte[] header(int type, int id, int payload) {
+
+		byte[] frame = new byte[HEADER_SIZE + payload];
+		writeHeader(frame, type, id, payload);
+
+		return frame;
+	}
+
+	private static void writeHeader(byte[] frame, int type, int id, int length) {
+
+		frame[0] = (byte) type;
+		frame[1] = (byte) (id >>> 8);
+		frame[2] = (byte) id;
+		frame[3] = (byte) (length >>> 8);
+		frame[4] = (byte) length;
+	}
+
+	/**
+	 * Pick the next stream with data and credit from the highest lane that
+	 * has one, round robin within the lane.
+	 *
+	 * must be called with mLock held.
+	 */
+	private Stream nextReady() {
+
+		int size = mSchedule.size();
+
+		for (int lane = PRIORITY_HIGH; lane >= PRIORITY_BULK; lane--) {
+
+			for (int i = 0; i < size; i++) {
+
+				int index = (mCursor[lane] + i) % size;
+				Stream stream = mSchedule.get(index);
+
+				if (stream.mPriority == lane && stream.mPendingCount > 0
+						&& stream.mSendWindow > 0) {
+
+					mCursor[lane] = index + 1;
+
+					return stream;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/** must be called with mLock held */
+	private boolean hasWork() {
+
+		if (!mControl.isEmpty()) {
+
+			return true;
+		}
+
+		for (Stream stream : mSchedule) {
+
+			if (stream.mPendingCount > 0 && stream.mSendWindow > 0) {
+
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private void writeLoop() {
+
+		byte[] frame = new byte[HEADER_SIZE + MAX_PAYLOAD];
+
+		try {
+
+			for (;;) {
+
+				byte[] out;
+				int length;
+				boolean idle;
+				LatencyHistogram latency = null;
+				long queuedAt = 0;
+
+				synchronized (mLock) {
+
+					Stream stream = null;
+
+					while (mError == null && !mClosed && mControl.isEmpty()
+							&& (stream = nextReady()) == null) {
+
+						mLock.wait();
+					}
+
+					if (mError != null || mClosed) {
+
+						return;
+					}
+
+					if (stream == null) {
+
+						out = mControl.removeFirst();
+						length = out.length;
+					} else {
+
+						int n = Math.min(MAX_PAYLOAD, Math.min(
+								stream.mPendingCount, stream.mSendWindow));
+						int first = Math.min(n, mWindow - stream.mPendingStart);
+						System.arraycopy(stream.mPending, stream.mPendingStart,
+								frame, HEADER_SIZE, first);
+						System.arraycopy(stream.mPending, 0, frame,
+								HEADER_SIZE + first, n - first);
+						stream.mPendingStart = (stream.mPendingStart + n)
+								% mWindow;
+						stream.mPendingCount -= n;
+						stream.mSendWindow -= n;
+						writeHeader(frame, TYPE_DATA, stream.mId, n);
+
+						latency = mLaneLatency[stream.mPriority];
+						queuedAt = stream.mPendingSince;
+						stream.mPendingSince = System.nanoTime();
+
+						if (stream.mPendingCount == 0 && stream.mLocalClosed) {
+
+							sendClose(stream);
+						}
+
+						out = frame;
+						length = HEADER_SIZE + n;
+						mLock.notifyAll();
+					}
+
+					idle = !hasWork();
+				}
+
+				mOut.write(out, 0, length);
+
+				if (idle) {
+
+					mOut.flush();
+				}
+
+				if (latency != null) {
+
+					latency.record(System.nanoTime() - queuedAt);
+				}
+			}
+		} catch (InterruptedException e) {
+
+			fail(new InterruptedIOException());
+		} catch (IOException e) {
+
+			fail(e);
+		}
+	}
+
+	private void readLoop() {
+
+		byte[] header = new byte[HEADER_SIZE];
+		byte[] payload = new byte[MAX_PAYLOAD];
+
+		try {
+
+			for (;;) {
+
+				if (!readFully(header, HEADER_SIZE, true)) {
+
+					fail(new EOFException("link closed by peer"));
+
+					return;
+				}
+
+				int type = header[0];
+				int id = ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+				int length = ((header[3] & 0xff) << 8) | (header[4] & 0xff);
+
+				if (length > MAX_PAYLOAD) {
+
+					throw new IOException("frame too large: " + length);
+				}
+
+				if (type == TYPE_WINDOW && length != 4) {
+
+					throw new IOException("malformed window update");
+				}
+
+				readFully(payload, length, false);
+
+				if (type == TYPE_OPEN) {
+
+					acceptOpen(id);
+
+					continue;
+				}
+
+				Stream stream;
+
+				synchronized (mLock) {
+
+					stream = mStreams.get(id);
+
+					if (stream == null) {
+
+						// credit may trail the close of a retired stream.
+						if (type == TYPE_WINDOW) {
+
+							continue;
+						}
+
+						// the peer's last frames for a refused stream.
+						if (mRefused.contains(id)) {
+
+							if (type == TYPE_CLOSE) {
+
+								mRefused.remove(id);
+							}
+
+							continue;
+						}
+
+						throw new IOException("frame for unknown stream " + id);
+					}
+
+					if (type == TYPE_CLOSE) {
+
+						stream.mCloseReceived = true;
+						retireIfDone(stream);
+					} else if (type == TYPE_WINDOW) {
+
+						stream.mSendWindow += ((payload[0] & 0xff) << 24)
+								| ((payload[1] & 0xff) << 16)
+								| ((payload[2] & 0xff) << 8)
+								| (payload[3] & 0xff);
+						mLock.notifyAll();
+
+						continue;
+					}
+				}
+
+				if (type == TYPE_DATA) {
+
+					stream.deliver(payload, length);
+				} else if (type == TYPE_CLOSE) {
+
+					stream.remoteClose();
+				} else {
+
+					throw new IOException("unknown frame type " + type);
+				}
+			}
+		} catch (IOException e) {
+
+			fail(e);
+		}
+	}
+
+	/**
+	 * @return false if the stream ended before the first byte
+	 */
+	private boolean readFully(byte[] b, int length, boolean eofAllowed)
+			throws IOException {
+
+		int offset = 0;
+
+		while (offset < length) {
+
+			int read = mIn.read(b, offset, length - offset);
+
+			if (read == -1) {
+
+				if (offset == 0 && eofAllowed) {
+
+					return false;
+				}
+
+				throw new EOFException();
+			}
+
+			offset += read;
+		}
+
+		return true;
+	}
+
+	private void fail(IOException e) {
+
+		Stream[] streams;
+
+		synchronized (mLock) {
+
+			if (mError == null && !mClosed) {
+
+				Log.i(TAG, "link failed", e);
+			}
+
+			if (mError == null) {
+
+				mError = e;
+			}
+
+			mLock.notifyAll();
+			streams = mSchedule.toArray(new Stream[mSchedule.size()]);
+			releaseStreamMemory(streams.length);
+			mBudgetReleased = true;
+
+			// nothing is sent any more.
+			for (Stream stream : streams) {
+
+				releasePending(stream);
+			}
+		}
+
+		for (Stream stream : streams) {
+
+			stream.linkFailed();
+		}
+	}
+}
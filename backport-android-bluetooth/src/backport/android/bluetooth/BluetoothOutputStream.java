@@ -32,29 +32,191 @@
 
 package backport.android.bluetooth;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.bluetooth.RfcommSocket;
 import android.util.Log;
 
-class BluetoothOutputStream extends OutputStream {
+/**
+ * OutputStream of a #BluetoothSocket.
+ * 
+ * By default every call is passed straight to the RFCOMM socket. In coalescing
+ * mode (see BluetoothSocket#setOutputCoalescing) small writes are collected in
+ * a buffer borrowed from the shared #BufferPool, and sent as one write when the
+ * buffer fills, when #flush is called, or when the flush delay expires.
+ * Delayed flushes are timed by one shared thread and written by a small pool
+ * of #FLUSH_THREADS threads. Each stream has at most one flush waiting in the
+ * pool, so a socket whose write blocks holds up at most one flush thread and
+ * cannot grow the thread count.
+ * 
+ * #write(ByteBuffer[]) and #write(byte[][]) send several parts, for example a
+ * header and a payload, as one transmission without first merging them.
+ */
+public final class BluetoothOutputStream extends OutputStream {
+
+	/** threads writing delayed flushes, shared by all streams */
+	static final int FLUSH_THREADS = 4;
+
+	private static final ThreadFactory FLUSH_FACTORY = new ThreadFactory() {
+
+		public Thread newThread(Runnable r) {
+
+			Thread thread = new Thread(r, "BluetoothOutputStream-flush");
+			thread.setDaemon(true);
+
+			return thread;
+		}
+	};
+
+	/** only times delayed flushes; never writes */
+	private static ScheduledExecutorService sFlushTimer;
+
+	/** writes delayed flushes */
+	private static ExecutorService sFlushExecutor;
+
+	private static synchronized ScheduledExecutorService getFlushTimer() {
+
+		if (sFlushTimer == null) {
+
+			sFlushTimer = new ScheduledThreadPoolExecutor(1, FLUSH_FACTORY);
+		}
+
+		return sFlushTimer;
+	}
+
+	private static synchronized ExecutorService getFlushExecutor() {
+
+		if (sFlushExecutor == null) {
+
+			sFlushExecutor = Executors.newFixedThreadPool(FLUSH_THREADS,
+					FLUSH_FACTORY);
+		}
+
+		return sFlushExecutor;
+	}
+
+	/** keeps the socket, and so its native resources, from being reaped */
+	private final BluetoothSocket mOwner;
 
 	private RfcommSocket mSocket;
 
 	private OutputStream mOutputStream;
 
-	public BluetoothOutputStream(RfcommSocket socket) {
+	private final boolean mCoalescing;
+
+	private byte[] mBuffer;
+
+	private int mLimit;
+
+	private int mCount;
+
+	private int mFlushDelayMs;
+
+	private volatile ScheduledFuture<?> mPendingFlush;
 
-		mSocket = socket;
+	private volatile BluetoothSocketStats.Recorder mStats;
+
+	private volatile BluetoothRateLimiter mLimiter;
+
+	/** failure of a deferred flush, reported to the next caller */
+	private IOException mDeferredError;
+
+	/** set by #abort without the lock; the buffer is dropped by the next holder */
+	private volatile boolean mAborted;
+
+	/** a pool thread has been given mFlushTask and has not taken the lock yet */
+	private final AtomicBoolean mFlushQueued = new AtomicBoolean();
+
+	/**
+	 * Runs on the timer thread: hands the flush to a pool thread, since it
+	 * may have to wait for the lock or for the native write.
+	 */
+	private final Runnable mFlushTrigger = new Runnable() {
+
+		public void run() {
+
+			// a queued flush sends whatever is buffered once it gets the lock.
+			if (mFlushQueued.compareAndSet(false, true)) {
+
+				getFlushExecutor().execute(mFlushTask);
+			}
+		}
+	};
+
+	private final Runnable mFlushTask = new Runnable() {
+
+		public void run() {
+
+			synchronized (BluetoothOutputStream.this) {
+
+				mFlushQueued.set(false);
+				mPendingFlush = null;
+
+				if (mAborted) {
+
+					discardBuffer();
+
+					return;
+				}
+
+				try {
+
+					flushBuffer();
+				} catch (IOException e) {
+
+					mDeferredError = e;
+					Log.e(BluetoothSocket.TAG, BluetoothSocket.EMPTY, e);
+				}
+			}
+		}
+	};
+
+	BluetoothOutputStream(BluetoothSocket owner) {
+
+		this(owner, 0, 0);
+	}
+
+	/**
+	 * @param bufferSize
+	 *            size of the coalescing buffer, or 0 to write through
+	 * @param flushDelayMs
+	 *            longest time a byte may wait in the buffer, or 0 to only
+	 *            flush when the buffer fills or #flush is called
+	 */
+	BluetoothOutputStream(BluetoothSocket owner, int bufferSize,
+			int flushDelayMs) {
+
+		mOwner = owner;
+		mSocket = owner.getRfcommSocket();
 
 		try {
 
-			mOutputStream = socket.getOutputStream();
+			mOutputStream = mSocket.getOutputStream();
 		} catch (IOException e) {
 
 			Log.e(BluetoothSocket.TAG, BluetoothSocket.EMPTY, e);
 		}
+
+		mCoalescing = bufferSize > 0;
+
+		if (mCoalescing) {
+
+			mBuffer = BufferPool.getDefault().acquire(bufferSize);
+			mLimit = bufferSize;
+			mFlushDelayMs = flushDelayMs;
+		}
 	}
 
 	
@@ -65,12 +227,25 @@ class BluetoothOutputStream extends OutputStream {
 
 
 
-	public void flush() throws IOException {
+	public synchronized void flush() throws IOException {
+
+		flushBuffer();
 		mOutputStream.flush();
 	}
 
 
 
+	/**
+	 * Send whatever the coalescing buffer holds, without flushing the
+	 * underlying stream.
+	 */
+	synchronized void flushBuffered() throws IOException {
+
+		flushBuffer();
+	}
+
+
+
 	public int hashCode() {
 		return mOutputStream.hashCode();
 	}
@@ -84,33 +259,311 @@ class BluetoothOutputStream extends OutputStream {
 
 
 	public void write(byte[] buffer, int offset, int count) throws IOException {
-		mOutputStream.write(buffer, offset, count);
+
+		if (!mCoalescing) {
+
+			writeNative(buffer, offset, count);
+
+			return;
+		}
+
+		synchronized (this) {
+
+			checkOpen();
+
+			// too large to be worth copying: send what we have, then this.
+			if (count >= mLimit) {
+
+				flushBuffer();
+				writeNative(buffer, offset, count);
+
+				return;
+			}
+
+			if (count > mLimit - mCount) {
+
+				flushBuffer();
+			}
+
+			System.arraycopy(buffer, offset, mBuffer, mCount, count);
+			mCount += count;
+
+			onBuffered();
+		}
 	}
 
 
 
 	public void write(byte[] buffer) throws IOException {
-		mOutputStream.write(buffer);
+		write(buffer, 0, buffer.length);
+	}
+
+
+
+	/**
+	 * Write all parts back to back as one transmission. The parts are handed
+	 * to the native socket in a single gathering write, or copied into the
+	 * coalescing buffer when they fit there.
+	 */
+	public void write(byte[][] parts) throws IOException {
+
+		ByteBuffer[] srcs = new ByteBuffer[parts.length];
+
+		for (int i = 0; i < parts.length; i++) {
+
+			srcs[i] = ByteBuffer.wrap(parts[i]);
+		}
+
+		write(srcs);
+	}
+
+	/**
+	 * Write the remaining bytes of all buffers back to back as one
+	 * transmission. On return every buffer has been fully consumed.
+	 * 
+	 * @see #write(byte[][])
+	 */
+	public synchronized void write(ByteBuffer[] srcs) throws IOException {
+
+		long total = 0;
+
+		for (int i = 0; i < srcs.length; i++) {
+
+			total += srcs[i].remaining();
+		}
+
+		if (mCoalescing) {
+
+			checkOpen();
+
+			if (total <= mLimit - mCount) {
+
+				for (int i = 0; i < srcs.length; i++) {
+
+					int n = srcs[i].remaining();
+					srcs[i].get(mBuffer, mCount, n);
+					mCount += n;
+				}
+
+				onBuffered();
+
+				return;
+			}
+
+			flushBuffer();
+		}
+
+		FileChannel channel = getChannel();
+
+		if (channel == null) {
+
+			for (int i = 0; i < srcs.length; i++) {
+
+				ByteBuffer src = srcs[i];
+
+				if (src.hasArray()) {
+
+					writeNative(src.array(), src.arrayOffset()
+							+ src.position(), src.remaining());
+					src.position(src.limit());
+				} else {
+
+					byte[] bytes = new byte[src.remaining()];
+					src.get(bytes);
+					writeNative(bytes, 0, bytes.length);
+				}
+			}
+
+			return;
+		}
+
+		throttle(total);
+
+		BluetoothSocketStats.Recorder stats = mStats;
+
+		while (total > 0) {
+
+			long start = (stats != null) ? System.nanoTime() : 0;
+			long written = channel.write(srcs);
+			total -= written;
+
+			if (stats != null) {
+
+				stats.recordWrite(written, System.nanoTime() - start);
+			}
+		}
+	}
+
+	void setStats(BluetoothSocketStats.Recorder stats) {
+
+		mStats = stats;
+	}
+
+	void setRateLimiter(BluetoothRateLimiter limiter) {
+
+		mLimiter = limiter;
+	}
+
+	private void throttle(long bytes) throws IOException {
+
+		BluetoothRateLimiter limiter = mLimiter;
+
+		if (limiter != null) {
+
+			limiter.acquire((int) Math.min(bytes, Integer.MAX_VALUE));
+		}
+	}
+
+	private void writeNative(byte[] buffer, int offset, int count)
+			throws IOException {
+
+		throttle(count);
+
+		BluetoothSocketStats.Recorder stats = mStats;
+
+		if (stats == null) {
+
+			mOutputStream.write(buffer, offset, count);
+
+			return;
+		}
+
+		long start = System.nanoTime();
+		mOutputStream.write(buffer, offset, count);
+		stats.recordWrite(count, System.nanoTime() - start);
 	}
 
+	private FileChannel getChannel() {
+
+		if (mOutputStream instanceof FileOutputStream) {
+
+			return ((FileOutputStream) mOutputStream).getChannel();
+		}
 
+		return null;
+	}
 
 	public void write(int oneByte) throws IOException {
-		mOutputStream.write(oneByte);
+
+		if (!mCoalescing) {
+
+			throttle(1);
+
+			BluetoothSocketStats.Recorder stats = mStats;
+
+			if (stats == null) {
+
+				mOutputStream.write(oneByte);
+			} else {
+
+				long start = System.nanoTime();
+				mOutputStream.write(oneByte);
+				stats.recordWrite(1, System.nanoTime() - start);
+			}
+
+			return;
+		}
+
+		synchronized (this) {
+
+			checkOpen();
+
+			mBuffer[mCount++] = (byte) oneByte;
+
+			onBuffered();
+		}
 	}
 
+	private void onBuffered() throws IOException {
 
+		if (mCount >= mLimit) {
 
-	@Override
-	protected void finalize() throws Throwable {
-	
-		super.finalize();
-		close();
+			flushBuffer();
+		} else if (mFlushDelayMs > 0 && mPendingFlush == null) {
+
+			mPendingFlush = getFlushTimer().schedule(mFlushTrigger,
+					mFlushDelayMs, TimeUnit.MILLISECONDS);
+		}
 	}
-	
+
+	private void checkOpen() throws IOException {
+
+		if (mAborted) {
+
+			discardBuffer();
+		}
+
+		if (mBuffer == null) {
+
+			throw new IOException("stream closed");
+		}
+
+		checkDeferredError();
+	}
+
+	private void checkDeferredError() throws IOException {
+
+		if (mDeferredError != null) {
+
+			IOException e = mDeferredError;
+			mDeferredError = null;
+
+			throw e;
+		}
+	}
+
+	/** must be called with the lock held */
+	private void flushBuffer() throws IOException {
+
+		if (!mCoalescing) {
+
+			return;
+		}
+
+		if (mPendingFlush != null) {
+
+			mPendingFlush.cancel(false);
+			mPendingFlush = null;
+		}
+
+		checkDeferredError();
+
+		if (mAborted) {
+
+			discardBuffer();
+
+			throw new IOException("stream closed");
+		}
+
+		if (mCount > 0) {
+
+			int count = mCount;
+			mCount = 0;
+			writeNative(mBuffer, 0, count);
+		}
+	}
+
+
+
 	@Override
 	public void close() throws IOException {
 
+		synchronized (this) {
+
+			if (mBuffer != null) {
+
+				try {
+
+					flushBuffer();
+				} catch (IOException e) {
+
+					Log.e(BluetoothSocket.TAG, BluetoothSocket.EMPTY, e);
+				}
+
+				discardBuffer();
+			}
+		}
+
 		try {
 
 			super.close();
@@ -121,4 +574,34 @@ class BluetoothOutputStream extends OutputStream {
 		}
 
 	}
+
+	/**
+	 * Close the stream for a socket that has already been destroyed. Unlike
+	 * #close this neither flushes nor takes the lock, which a writer blocked
+	 * in the native write or in the rate limiter may hold; buffered data is
+	 * discarded, and the buffer goes back to the pool when the lock is next
+	 * taken.
+	 */
+	void abort() {
+
+		mAborted = true;
+
+		ScheduledFuture<?> pending = mPendingFlush;
+
+		if (pending != null) {
+
+			pending.cancel(false);
+		}
+	}
+
+	/** must be called with the lock held */
+	private void discardBuffer() {
+
+		if (mBuffer != null) {
+
+			BufferPool.getDefault().release(mBuffer);
+			mBuffer = null;
+			mCount = 0;
+		}
+	}
 }
\ No newline at end of file
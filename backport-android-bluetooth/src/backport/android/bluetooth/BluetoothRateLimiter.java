@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+
+/**
+ * Token bucket limiting the send rate of the sockets it is given to with
+ * BluetoothSocket#setRateLimiter.
+ *
+ * The bucket holds up to burst bytes and refills at the configured rate.
+ * Every native write takes its size from the bucket, waiting while it is
+ * empty; a write larger than the burst waits for a full bucket and leaves
+ * the bucket in debt, so the average rate holds. Blocking writes, coalesced
+ * flushes, the send queue and #BluetoothChannel are all limited.
+ *
+ * Sockets sharing a limiter share its rate. #forDevice returns the limiter of
+ * a remote device, so all connections to one device can be held to one share
+ * of the radio.
+ */
+public final class BluetoothRateLimiter {
+
+	private static final HashMap<String, BluetoothRateLimiter> sDeviceLimiters = new HashMap<String, BluetoothRateLimiter>();
+
+	/**
+	 * Get the limiter shared by all sockets to a device. It starts unlimited;
+	 * configure it with #setRate.
+	 */
+	public static BluetoothRateLimiter forDevice(BluetoothDevice device) {
+
+		String address = device.getAddress();
+
+		synchronized (sDeviceLimiters) {
+
+			BluetoothRateLimiter limiter = sDeviceLimiters.get(address);
+
+			if (limiter == null) {
+
+				limiter = new BluetoothRateLimiter(0, 0);
+				sDeviceLimiters.put(address, limiter);
+			}
+
+			return limiter;
+		}
+	}
+
+	private long mBytesPerSecond;
+
+	private int mBurst;
+
+	private double mTokens;
+
+	private long mRefilledAt = System.nanoTime();
+
+	private long mBytes;
+
+	private long mThrottledCount;
+
+	private long mThrottledNanos;
+
+	/**
+	 * @param bytesPerSecond
+	 *            sustained rate, or 0 for no limit
+	 * @param burst
+	 *            bytes that may be sent at once after an idle period
+	 */
+	public BluetoothRateLimiter(long bytesPerSecond, int burst) {
+
+		setRate(bytesPerSecond, burst);
+	}
+
+	/**
+	 * Change the rate. Waiting writers pick it up at once.
+	 */
+	public synchronized void setRate(long bytesPerSecond, int burst) {
+
+		if (bytesPerSecond < 0 || burst < 0) {
+
+			throw new IllegalArgumentException();
+		}
+
+		refill(System.nanoTime());
+		boolean wasUnlimited = mBytesPerSecond == 0;
+		mBytesPerSecond = bytesPerSecond;
+		mBurst = Math.max(burst, 1);
+		mTokens = wasUnlimited ? mBurst : Math.min(mTokens, mBurst);
+		notifyAll();
+	}
+
+	public synchronized long getRate() {
+
+		return mBytesPerSecond;
+	}
+
+	public synchronized int getBurst() {
+
+		return mBurst;
+	}
+
+	/**
+	 * @return bytes that passed the limiter
+	 */
+	public synchronized long getBytes() {
+
+		return mBytes;
+	}
+
+	/**
+	 * @return the number of writes that had to wait
+	 */
+	public synchronized long getThrottledCount() {
+
+		return mThrottledCount;
+	}
+
+	/**
+	 * @return milliseconds writers spent waiting for the bucket
+	 */
+	public synchronized long getThrottledTime() {
+
+		return mThrottledNanos / 1000000;
+	}
+
+	/**
+	 * Take bytes from the bucket, waiting until they may be sent.
+	 */
+	synchronized void acquire(int bytes) throws InterruptedIOException {
+
+		mBytes += bytes;
+
+		if (mBytesPerSecond == 0) {
+
+			return;
+		}
+
+		long start = System.nanoTime();
+		refill(start);
+
+		if (mTokens < Math.min(bytes, mBurst)) {
+
+			mThrottledCount++;
+
+			try {
+
+				while (mBytesPerSecond > 0
+						&& mTokens < Math.min(bytes, mBurst)) {
+
+					double missing = Math.min(bytes, mBurst) - mTokens;
+					long waitMs = (long) Math.ceil(missing * 1000
+							/ mBytesPerSecond);
+					wait(Math.max(waitMs, 1));
+					refill(System.nanoTime());
+				}
+			} catch (InterruptedException e) {
+
+				throw new InterruptedIOException();
+			} finally {
+
+				mThrottledNanos += System.nanoTime() - start;
+			}
+		}
+
+		mTokens -= bytes;
+	}
+
+	private void refill(long now) {
+
+		if (mBytesPerSecond > 0) {
+
+			mTokens = Math.min(mBurst, mTokens + (now - mRefilledAt)
+					* (double) mBytesPerSecond / 1000000000L);
+		}
+
+		mRefilledAt = now;
+	}
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import android.util.Log;
+
+/**
+ * Watches many connected #BluetoothSocket s from a single thread and calls a
+ * #Handler when one of them has data to read, instead of parking one blocked
+ * reader thread per socket.
+ *
+ * RFCOMM file descriptors cannot be put in a java.nio Selector on this
+ * platform, so readiness is taken from the number of bytes the socket can
+ * deliver without blocking (FIONREAD). When no socket is ready the selector
+ * thread sleeps with an increasing back-off, bounded by #MAX_IDLE_WAIT_MS, and
+ * is woken at once when a socket is registered. With no socket registered it
+ * does not poll at all.
+ *
+ * Handlers run on the selector thread, or on a small worker pool when one is
+ * requested. A socket is not reported again while its handler is running. The
+ * handler should only read the number of bytes it was told are available, so
+ * that it never blocks.
+ */
+public final class BluetoothSelector {
+
+	private static final String TAG = BluetoothSelector.class.getSimpleName();
+
+	static final int MIN_IDLE_WAIT_MS = 1;
+
+	static final int MAX_IDLE_WAIT_MS = 20;
+
+	/**
+	 * Receives readiness events for a registered socket.
+	 */
+	public interface Handler {
+
+		/**
+		 * Data can be read from the socket.
+		 *
+		 * @param available
+		 *            number of bytes that can be read without blocking
+		 */
+		void onReadable(BluetoothSocket socket, int available);
+
+		/**
+		 * The socket has been closed or the peer went away. The socket has
+		 * already been unregistered.
+		 */
+		void onDisconnected(BluetoothSocket socket);
+	}
+
+	private static final class Key {
+
+		final BluetoothSocket mSocket;
+
+		final Handler mHandler;
+
+		volatile boolean mBusy;
+
+		Key(BluetoothSocket socket, Handler handler) {
+
+			mSocket = socket;
+			mHandler = handler;
+		}
+	}
+
+	private final CopyOnWriteArrayList<Key> mKeys = new CopyOnWriteArrayList<Key>();
+
+	private final ExecutorService mWorkers;
+
+	private final Object mLock = new Object();
+
+	private final Thread mThread;
+
+	private volatile boolean mClosed;
+
+	/**
+	 * Create a selector that runs the handlers on its own thread.
+	 */
+	public BluetoothSelector() {
+
+		this(0);
+	}
+
+	/**
+	 * Create a selector that runs the handlers on a pool of workerThreads
+	 * threads, or on the selector thread when workerThreads is 0.
+	 */
+	public BluetoothSelector(int workerThreads) {
+
+		if (workerThreads < 0) {
+
+			throw new IllegalArgumentException();
+		}
+
+		if (workerThreads > 0) {
+
+			mWorkers = Executors.newFixedThreadPool(workerThreads,
+					new ThreadFactory() {
+
+						public Thread newThread(Runnable r) {
+
+							Thread thread = new Thread(r, TAG + "-worker");
+							thread.setDaemon(true);
+
+							return thread;
+						}
+					});
+		} else {
+
+			mWorkers = null;
+		}
+
+		mThread = new Thread(new Runnable() {
+
+			public void run() {
+
+				loop();
+			}
+		}, TAG);
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * Start watching socket. The socket must be connected.
+	 */
+	public void register(BluetoothSocket socket, Handler handler) {
+
+		if (socket == null || handler == null) {
+
+			throw new IllegalArgumentException();
+		}
+
+		if (mClosed) {
+
+			throw new IllegalStateException("selector closed");
+		}
+
+		unregister(socket);
+		mKeys.add(new Key(socket, handler));
+
+		synchronized (mLock) {
+
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Stop watching socket. The socket itself is left open.
+	 */
+	public void unregister(BluetoothSocket socket) {
+
+		for (Key key : mKeys) {
+
+			if (key.mSocket == socket) {
+
+				mKeys.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of sockets currently watched
+	 */
+	public int getRegisteredCount() {
+
+		return mKeys.size();
+	}
+
+	/**
+	 * Stop the selector thread and the workers. Registered sockets are left
+	 * open.
+	 */
+	public void close() {
+
+		mClosed = true;
+		mKeys.clear();
+
+		synchronized (mLock) {
+
+			mLock.notifyAll();
+		}
+
+		if (mWorkers != null) {
+
+			mWorkers.shutdown();
+		}
+	}
+
+	private void loop() {
+
+		int idleWait = MIN_IDLE_WAIT_MS;
+
+		while (!mClosed) {
+
+			boolean dispatched = false;
+
+			for (Key key : mKeys) {
+
+				if (!key.mBusy && poll(key)) {
+
+					dispatched = true;
+				}
+			}
+
+			if (dispatched) {
+
+				idleWait = MIN_IDLE_WAIT_MS;
+
+				continue;
+			}
+
+			synchronized (mLock) {
+
+				try {
+
+					// nothing to poll: sleep until #register or #close.
+					if (mKeys.isEmpty() && !mClosed) {
+
+						mLock.wait();
+
+						idleWait = MIN_IDLE_WAIT_MS;
+
+						continue;
+					}
+
+					mLock.wait(idleWait);
+				} catch (InterruptedException e) {
+
+					return;
+				}
+			}
+
+			idleWait = Math.min(idleWait * 2, MAX_IDLE_WAIT_MS);
+		}
+	}
+
+	/**
+	 * @return true if an event was dispatched for key
+	 */
+	private boolean poll(final Key key) {
+
+		final BluetoothSocket socket = key.mSocket;
+		int available;
+
+		try {
+
+			InputStream in = socket.getInputStream();
+			available = in.available();
+
+			if (available == 0
+					&& (socket.isClosed() || !socket.getRfcommSocket()
+							.isInputConnected())) {
+
+				available = -1;
+			}
+		} catch (IOException e) {
+
+			available = -1;
+		}
+
+		if (available == 0) {
+
+			return false;
+		}
+
+		if (available < 0) {
+
+			mKeys.remove(key);
+		}
+
+		key.mBusy = true;
+
+		final int count = available;
+		Runnable event = new Runnable() {
+
+			public void run() {
+
+				try {
+
+					if (count < 0) {
+
+						key.mHandler.onDisconnected(socket);
+					} else {
+
+						key.mHandler.onReadable(socket, count);
+					}
+				} catch (RuntimeException e) {
+
+					Log.e(TAG, "handler failed", e);
+				} finally {
+
+					key.mBusy = false;
+				}
+
+				if (mWorkers != null) {
+
+					// let the selector look at this socket again right away.
+					synchronized (mLock) {
+
+						mLock.notifyAll();
+					}
+				}
+			}
+		};
+
+		if (mWorkers != null) {
+
+			try {
+
+				mWorkers.execute(event);
+			} catch (RejectedExecutionException e) {
+
+				// closed meanwhile.
+				key.mBusy = false;
+			}
+		} else {
+
+			event.run();
+		}
+
+		return true;
+	}
+}
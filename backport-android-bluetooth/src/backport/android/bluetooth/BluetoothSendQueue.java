@@ -0,0 +1,554 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.util.Log;
+
+/**
+ * Bounded queue of outgoing messages of a #BluetoothSocket, drained by a
+ * writer thread of its own, so that senders never block on a slow peer.
+ *
+ * Messages are written to the socket output stream in the order they were
+ * queued. When the queue is full the overflow policy decides: #OVERFLOW_BLOCK
+ * waits for room, #OVERFLOW_DROP_OLDEST discards the oldest queued message and
+ * #OVERFLOW_FAIL_FAST rejects the new one.
+ *
+ * Once a write fails, every queued and later message fails with the same
+ * error.
+ * 
+ * With a #BluetoothMemoryBudget on the socket, queued bytes are charged to it
+ * until written; a message that does not fit is handled by the budget's
+ * policy, and under BluetoothMemoryBudget#POLICY_DROP is cancelled.
+ */
+public final class BluetoothSendQueue {
+
+	private static final String TAG = BluetoothSendQueue.class.getSimpleName();
+
+	/** wait for room in the queue */
+	public static final int OVERFLOW_BLOCK = 0;
+
+	/** discard the oldest queued message to make room */
+	public static final int OVERFLOW_DROP_OLDEST = 1;
+
+	/** reject the new message with an IOException */
+	public static final int OVERFLOW_FAIL_FAST = 2;
+
+	public static final int DEFAULT_CAPACITY = 64;
+
+	/**
+	 * Completion handle of a message given to BluetoothSocket#sendAsync.
+	 * Completes when the message has been written to the socket, or fails
+	 * with an ExecutionException wrapping the IOException. A message dropped
+	 * under #OVERFLOW_DROP_OLDEST, or cancelled before it was written, reports
+	 * a CancellationException.
+	 */
+	public static final class SendFuture implements Future<Void> {
+
+		private static final int QUEUED = 0;
+
+		private static final int WRITING = 1;
+
+		private static final int SENT = 2;
+
+		private static final int FAILED = 3;
+
+		private static final int CANCELLED = 4;
+
+		final byte[] mData;
+
+		final long mQueuedAt = System.nanoTime();
+
+		private final BluetoothSendQueue mOwner;
+
+		private int mState = QUEUED;
+
+		private IOException mError;
+
+		SendFuture(BluetoothSendQueue owner, byte[] data) {
+
+			mOwner = owner;
+			mData = data;
+		}
+
+		/**
+		 * Remove the message from the queue if it has not been written yet.
+		 * It stops counting toward the capacity and the memory budget at once.
+		 */
+		public boolean cancel(boolean mayInterruptIfRunning) {
+
+			synchronized (this) {
+
+				if (mState != QUEUED) {
+
+					return false;
+				}
+
+				mState = CANCELLED;
+				notifyAll();
+			}
+
+			mOwner.remove(this);
+
+			return true;
+		}
+
+		public synchronized boolean isCancelled() {
+
+			return mState == CANCELLED;
+		}
+
+		public synchronized boolean isDone() {
+
+			return mState >= SENT;
+		}
+
+		public synchronized Void get() throws InterruptedException,
+				ExecutionException {
+
+			while (mState < SENT) {
+
+				wait();
+			}
+
+			return result();
+		}
+
+		public synchronized Void get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException,
+				TimeoutException {
+
+			long until = System.currentTimeMillis() + unit.toMillis(timeout);
+
+			while (mState < SENT) {
+
+				long remaining = until - System.currentTimeMillis();
+
+				if (remaining <= 0) {
+
+					throw new TimeoutException();
+				}
+
+				wait(remaining);
+			}
+
+			return result();
+		}
+
+		private Void result() throws ExecutionException {
+
+			if (mState == CANCELLED) {
+
+				throw new CancellationException();
+			}
+
+			if (mState == FAILED) {
+
+				throw new ExecutionException(mError);
+			}
+
+			return null;
+		}
+
+		/**
+		 * @return false if the message was cancelled meanwhile
+		 */
+		synchronized boolean begin() {
+
+			if (mState != QUEUED) {
+
+				return false;
+			}
+
+			mState = WRITING;
+
+			return true;
+		}
+
+		synchronized void complete(IOException error) {
+
+			if (mState >= SENT) {
+
+				return;
+			}
+
+			if (error == null) {
+
+				mState = SENT;
+			} else {
+
+				mState = FAILED;
+				mError = error;
+			}
+
+			notifyAll();
+		}
+	}
+
+	private final OutputStream mOutputStream;
+
+	private final int mCapacity;
+
+	private final int mOverflowPolicy;
+
+	/** charged with the bytes of queued messages, or null */
+	private final BluetoothMemoryBudget mBudget;
+
+	private final LinkedList<SendFuture> mQueue = new LinkedList<SendFuture>();
+
+	private final LatencyHistogram mQueueLatency = new LatencyHistogram();
+
+	private final Thread mWriter;
+
+	private int mMaxDepth;
+
+	private long mDropped;
+
+	private long mRejected;
+
+	private IOException mError;
+
+	private boolean mClosed;
+
+	BluetoothSendQueue(OutputStream out, int capacity, int overflowPolicy,
+			BluetoothMemoryBudget budget) {
+
+		if (capacity < 1) {
+
+			throw new IllegalArgumentException("capacity < 1");
+		}
+
+		if (overflowPolicy < OVERFLOW_BLOCK
+				|| overflowPolicy > OVERFLOW_FAIL_FAST) {
+
+			throw new IllegalArgumentException("overflowPolicy");
+		}
+
+		mOutputStream = out;
+		mCapacity = capacity;
+		mOverflowPolicy = overflowPolicy;
+		mBudget = budget;
+
+		mWriter = new Thread(new Runnable() {
+
+			public void run() {
+
+				drain();
+			}
+		}, TAG);
+		mWriter.setDaemon(true);
+		mWriter.start();
+	}
+
+	/**
+	 * Queue data for sending. The array must not be modified until the
+	 * returned future is done.
+	 *
+	 * @throws IOException
+	 *             if the queue is closed, a previous write failed, or the
+	 *             queue is full under #OVERFLOW_FAIL_FAST
+	 * @throws InterruptedIOException
+	 *             if interrupted while waiting for room under #OVERFLOW_BLOCK
+	 */
+	public SendFuture send(byte[] data) throws IOException {
+
+		SendFuture future = new SendFuture(this, data);
+		SendFuture dropped = null;
+
+		synchronized (this) {
+
+			checkUsable();
+		}
+
+		if (mBudget != null && !mBudget.admit(data.length)) {
+
+			future.cancel(false);
+
+			synchronized (this) {
+
+				mDropped++;
+			}
+
+			return future;
+		}
+
+		synchronized (this) {
+
+			try {
+
+				checkUsable();
+			} catch (IOException e) {
+
+				discharge(future);
+
+				throw e;
+			}
+
+			while (mQueue.size() >= mCapacity) {
+
+				if (mOverflowPolicy == OVERFLOW_FAIL_FAST) {
+
+					mRejected++;
+					discharge(future);
+
+					throw new IOException("send queue full");
+				}
+
+				if (mOverflowPolicy == OVERFLOW_DROP_OLDEST) {
+
+					dropped = mQueue.removeFirst();
+					mDropped++;
+
+					break;
+				}
+
+				try {
+
+					wait();
+					checkUsable();
+				} catch (InterruptedException e) {
+
+					discharge(future);
+
+					throw new InterruptedIOException();
+				} catch (IOException e) {
+
+					discharge(future);
+
+					throw e;
+				}
+			}
+
+			mQueue.addLast(future);
+			mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+			notifyAll();
+		}
+
+		if (dropped != null) {
+
+			dropped.cancel(false);
+			discharge(dropped);
+		}
+
+		return future;
+	}
+
+	/**
+	 * @return the number of messages waiting to be written
+	 */
+	public synchronized int getDepth() {
+
+		return mQueue.size();
+	}
+
+	/**
+	 * @return the largest number of messages that waited at the same time
+	 */
+	public synchronized int getMaxDepth() {
+
+		return mMaxDepth;
+	}
+
+	public int getCapacity() {
+
+		return mCapacity;
+	}
+
+	/**
+	 * @return the number of messages discarded under #OVERFLOW_DROP_OLDEST,
+	 *         or by BluetoothMemoryBudget#POLICY_DROP
+	 */
+	public synchronized long getDroppedCount() {
+
+		return mDropped;
+	}
+
+	/**
+	 * @return the number of messages rejected under #OVERFLOW_FAIL_FAST
+	 */
+	public synchronized long getRejectedCount() {
+
+		return mRejected;
+	}
+
+	/**
+	 * @return time from queueing until the write of a message started
+	 */
+	public LatencyHistogram getQueueLatency() {
+
+		return mQueueLatency.snapshot();
+	}
+
+	/**
+	 * Stop the writer. Messages still queued fail with an IOException.
+	 */
+	void close() {
+
+		synchronized (this) {
+
+			if (mClosed) {
+
+				return;
+			}
+
+			mClosed = true;
+			notifyAll();
+		}
+
+		failPending(new IOException("socket closed"));
+	}
+
+	/**
+	 * Take a cancelled message out of the queue, unless the writer or an
+	 * overflow already did; whoever removes it discharges it.
+	 */
+	private void remove(SendFuture future) {
+
+		synchronized (this) {
+
+			if (!mQueue.remove(future)) {
+
+				return;
+			}
+
+			// room for a sender blocked under OVERFLOW_BLOCK.
+			notifyAll();
+		}
+
+		discharge(future);
+	}
+
+	private void checkUsable() throws IOException {
+
+		if (mError != null) {
+
+			IOException e = new IOException("previous send failed");
+			e.initCause(mError);
+
+			throw e;
+		}
+
+		if (mClosed) {
+
+			throw new IOException("send queue closed");
+		}
+	}
+
+	private void drain() {
+
+		for (;;) {
+
+			SendFuture next;
+
+			synchronized (this) {
+
+				while (mQueue.isEmpty() && !mClosed) {
+
+					try {
+
+						wait();
+					} catch (InterruptedException e) {
+
+						return;
+					}
+				}
+
+				if (mClosed) {
+
+					return;
+				}
+
+				next = mQueue.removeFirst();
+				notifyAll();
+			}
+
+			if (!next.begin()) {
+
+				discharge(next);
+
+				continue;
+			}
+
+			mQueueLatency.record(System.nanoTime() - next.mQueuedAt);
+
+			try {
+
+				mOutputStream.write(next.mData);
+
+				if (getDepth() == 0) {
+
+					mOutputStream.flush();
+				}
+
+				next.complete(null);
+				discharge(next);
+			} catch (IOException e) {
+
+				Log.e(TAG, BluetoothSocket.EMPTY, e);
+				next.complete(e);
+				discharge(next);
+
+				synchronized (this) {
+
+					mError = e;
+					notifyAll();
+				}
+
+				failPending(e);
+
+				return;
+			}
+		}
+	}
+
+	private void failPending(IOException e) {
+
+		LinkedList<SendFuture> pending;
+
+		synchronized (this) {
+
+			pending = new LinkedList<SendFuture>(mQueue);
+			mQueue.clear();
+		}
+
+		for (SendFuture future : pending) {
+
+			future.complete(e);
+			discharge(future);
+		}
+	}
+
+	/**
+	 * Give the bytes of a message that left the queue back to the budget.
+	 */
+	private void discharge(SendFuture future) {
+
+		if (mBudget != null) {
+
+			mBudget.release(future.mData.length);
+		}
+	}
+}
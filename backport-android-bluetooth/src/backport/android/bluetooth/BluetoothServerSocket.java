@@ -35,6 +35,9 @@ package backport.android.bluetooth;
 import java.io.Closeable;
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.LinkedList;
 
 import android.bluetooth.RfcommSocket;
 import android.util.Log;
@@ -103,9 +106,52 @@ public final class BluetoothServerSocket implements Closeable {
 		return socket;
 	}
 
+	private static final String TAG = BluetoothServerSocket.class
+			.getSimpleName();
+
+	/** longest native accept; how long the acceptor may outlive #close */
+	static final int ACCEPT_SLICE_MS = 1000;
+
 	private final BluetoothSocket mSocket;
 
-	private volatile BluetoothSocket mServerSocket;
+	/**
+	 * the last accepted connection, closed with this socket unless in multi
+	 * accept mode
+	 */
+	private BluetoothSocket mServerSocket;
+
+	/** guards the fields below */
+	private final Object mAcceptLock = new Object();
+
+	private Thread mAcceptor;
+
+	/** accepted connections no caller has taken yet, oldest first */
+	private final LinkedList<Accepted> mBacklog = new LinkedList<Accepted>();
+
+	private int mBacklogLimit = 1;
+
+	/** accept without waiting for callers, see #startAccepting */
+	private boolean mMultiAccept;
+
+	private IOException mAcceptError;
+
+	/** callers blocked in #accept */
+	private int mWaiters;
+
+	private boolean mClosed;
+
+	private RfcommChannelAllocator mAllocator;
+
+	private int mChannel;
+
+	private long mAcceptingSince;
+
+	private long mAcceptedCount;
+
+	/** connections accepted since mAcceptingSince */
+	private long mMultiAcceptedCount;
+
+	private final LatencyHistogram mQueueWait = new LatencyHistogram();
 
 	/**
 	 * Construct a socket for incoming connections.
@@ -143,71 +189,193 @@ public final class BluetoothServerSocket implements Closeable {
 	 * subsequent incoming connections by calling #accept repeatedly. #close can
 	 * be used to abort this call from another thread.
 	 * 
+	 * @param timeout
+	 *            milliseconds to wait, or -1 to wait until a connection
+	 *            arrives or this socket is closed
 	 * @return A connected #BluetoothSocket
 	 * @throws IOException
 	 *             On error, for example this call was aborted, or timeout
 	 */
 	public BluetoothSocket accept(int timeout) throws IOException {
 
-		if (timeout > -1) {
+		BluetoothSocket socket = poll(timeout);
 
-			synchronized (mSocket) {
+		if (socket == null) {
 
-				mServerSocket = mSocket.createSocket();
-				RfcommSocket rfcommSocket = mServerSocket.getRfcommSocket();
-				mSocket.getRfcommSocket().accept(rfcommSocket, timeout);
-
-				return mServerSocket;
-			}
+			throw new SocketTimeoutException("accept timed out");
 		}
 
-		_listening = true;
+		return socket;
+	}
+
+	/**
+	 * Keep accepting connections whether or not a caller is waiting, for
+	 * servers that expect several clients at once. Up to backlog connections
+	 * are held for #take or #poll; while the backlog is full no more are
+	 * accepted and further clients wait in the Bluetooth stack.
+	 * 
+	 * In this mode #close leaves the connections already taken open.
+	 * 
+	 * @param backlog
+	 *            connections to hold, at least 1
+	 */
+	public void startAccepting(int backlog) throws IOException {
+
+		if (backlog < 1) {
 
-		for (;;) {
+			throw new IllegalArgumentException("backlog");
+		}
 
-			synchronized (mSocket) {
-				
-				if (!_listening) {
+		synchronized (mAcceptLock) {
 
-					break;
-				}
+			if (mClosed) {
+
+				throw new IOException("socket closed");
 			}
 
-			BluetoothSocket newSocket;
-			FileDescriptor accept;
+			mBacklogLimit = backlog;
 
-			synchronized (mSocket) {
+			if (!mMultiAccept) {
 
-				newSocket = mSocket.createSocket();
+				mMultiAccept = true;
+				mAcceptingSince = System.currentTimeMillis();
 			}
 
-			RfcommSocket acceptee = newSocket.getRfcommSocket();
-			RfcommSocket accepter;
+			startAcceptor();
+			mAcceptLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Take the oldest accepted connection, waiting until there is one.
+	 * 
+	 * @throws IOException
+	 *             if this socket is closed
+	 */
+	public BluetoothSocket take() throws IOException {
+
+		return accept(-1);
+	}
+
+	/**
+	 * Take the oldest accepted connection, waiting at most timeout.
+	 * 
+	 * @param timeout
+	 *            milliseconds to wait, or -1 for no limit
+	 * @return the connection, or null on timeout
+	 * @throws IOException
+	 *             if this socket is closed
+	 */
+	public BluetoothSocket poll(int timeout) throws IOException {
 
-			synchronized (mSocket) {
+		long until = (timeout > -1) ? System.currentTimeMillis() + timeout
+				: Long.MAX_VALUE;
 
-				accepter = mSocket.getRfcommSocket();
-			}
+		synchronized (mAcceptLock) {
+
+			mWaiters++;
 
-			accept = accepter.accept(acceptee, 1000);
+			try {
+
+				for (;;) {
+
+					if (mClosed) {
+
+						throw new IOException("socket closed");
+					}
+
+					if (!mBacklog.isEmpty()) {
+
+						return take(mBacklog.removeFirst());
+					}
+
+					if (mAcceptError != null) {
+
+						IOException e = mAcceptError;
+						mAcceptError = null;
+
+						throw e;
+					}
+
+					startAcceptor();
+
+					long remaining = until - System.currentTimeMillis();
+
+					if (remaining <= 0) {
 
-			if (accept != null && accept.valid()) {
+						return null;
+					}
 
-				synchronized (mSocket) {
+					try {
 
-					mServerSocket = newSocket;
+						if (until == Long.MAX_VALUE) {
+
+							mAcceptLock.wait();
+						} else {
+
+							mAcceptLock.wait(remaining);
+						}
+					} catch (InterruptedException e) {
+
+						throw new InterruptedIOException("accept interrupted");
+					}
 				}
+			} finally {
+
+				mWaiters--;
+			}
+		}
+	}
+
+	/**
+	 * @return connections accepted since this socket was opened
+	 */
+	public long getAcceptedCount() {
+
+		synchronized (mAcceptLock) {
+
+			return mAcceptedCount;
+		}
+	}
+
+	/**
+	 * @return connections accepted per minute since #startAccepting, or 0 in
+	 *         single accept mode
+	 */
+	public float getAcceptRate() {
+
+		synchronized (mAcceptLock) {
 
-				break;
+			if (!mMultiAccept) {
+
+				return 0;
 			}
 
-			//newSocket.close();
+			long elapsed = Math.max(1, System.currentTimeMillis()
+					- mAcceptingSince);
+
+			return mMultiAcceptedCount * 60000f / elapsed;
 		}
+	}
+
+	/**
+	 * @return connections accepted and not taken yet
+	 */
+	public int getBacklogSize() {
 
-		return mServerSocket;
+		synchronized (mAcceptLock) {
+
+			return mBacklog.size();
+		}
 	}
 
-	private boolean _listening;
+	/**
+	 * @return time from accept until a caller took the connection
+	 */
+	public LatencyHistogram getQueueWait() {
+
+		return mQueueWait.snapshot();
+	}
 
 	/**
 	 * Closes this socket. This will cause other blocking calls on this socket
@@ -215,18 +383,222 @@ public final class BluetoothServerSocket implements Closeable {
 	 */
 	public void close() throws IOException {
 
-		synchronized (mSocket) {
+		LinkedList<Accepted> unclaimed;
+		BluetoothSocket last;
+		boolean accepting;
+
+		synchronized (mAcceptLock) {
+
+			if (mClosed) {
+
+				return;
+			}
+
+			mClosed = true;
+			unclaimed = new LinkedList<Accepted>(mBacklog);
+			mBacklog.clear();
+			last = mServerSocket;
+			mServerSocket = null;
+			accepting = mAcceptor != null;
+			mAcceptLock.notifyAll();
+		}
+
+		for (Accepted accepted : unclaimed) {
+
+			try {
+
+				accepted.mSocket.close();
+			} catch (IOException e) {
+
+				Log.e(TAG, BluetoothSocket.EMPTY, e);
+			}
+		}
+
+		if (last != null) {
+
+			last.close();
+		}
+
+		if (!accepting) {
+
+			closeListener();
+		}
+
+		// otherwise the acceptor closes the listening socket when its native
+		// accept returns, so that it is not destroyed under the call.
+	}
+
+	/** called with mAcceptLock held */
+	private BluetoothSocket take(Accepted accepted) {
+
+		mQueueWait.record(System.nanoTime() - accepted.mTime);
+
+		if (!mMultiAccept) {
+
+			mServerSocket = accepted.mSocket;
+		}
+
+		mAcceptLock.notifyAll();
+
+		return accepted.mSocket;
+	}
+
+	/** called with mAcceptLock held */
+	private void startAcceptor() {
+
+		if (mAcceptor != null) {
+
+			return;
+		}
+
+		mAcceptor = new Thread(new Runnable() {
+
+			public void run() {
+
+				acceptLoop();
+			}
+		}, TAG + "-acceptor");
+		mAcceptor.setDaemon(true);
+		mAcceptor.start();
+	}
+
+	/**
+	 * Run native accepts while someone waits for a connection, or all the time
+	 * in multi accept mode, as long as the backlog has room. The native call
+	 * cannot be interrupted, so it waits at most #ACCEPT_SLICE_MS; a
+	 * connection ends the wait at once. The acceptee is reused until a
+	 * connection lands on it.
+	 */
+	private void acceptLoop() {
+
+		RfcommSocket listener = mSocket.getRfcommSocket();
+		BluetoothSocket acceptee = null;
+
+		try {
+
+			for (;;) {
+
+				synchronized (mAcceptLock) {
+
+					while (!mClosed && (mBacklog.size() >= mBacklogLimit
+							|| (!mMultiAccept && mWaiters == 0))) {
+
+						mAcceptLock.wait();
+					}
+
+					if (mClosed) {
+
+						break;
+					}
+				}
+
+				if (acceptee == null) {
+
+					acceptee = mSocket.createSocket();
+				}
+
+				FileDescriptor fd = listener.accept(acceptee.getRfcommSocket(),
+						ACCEPT_SLICE_MS);
+
+				if (fd != null && fd.valid()) {
+
+					synchronized (mAcceptLock) {
+
+						if (!mClosed) {
+
+							mBacklog.addLast(new Accepted(acceptee));
+							mAcceptedCount++;
+
+							if (mMultiAccept) {
+
+								mMultiAcceptedCount++;
+							}
+							acceptee = null;
+							mAcceptLock.notifyAll();
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+
+			synchronized (mAcceptLock) {
+
+				if (!mClosed) {
+
+					mAcceptError = e;
+				}
+			}
+		} catch (InterruptedException e) {
+
+			// daemon thread; nobody interrupts it.
+		} finally {
+
+			boolean closed;
+
+			synchronized (mAcceptLock) {
+
+				mAcceptor = null;
+				closed = mClosed;
+				mAcceptLock.notifyAll();
+			}
+
+			if (acceptee != null) {
+
+				try {
+
+					acceptee.close();
+				} catch (IOException e) {
+
+					Log.e(TAG, BluetoothSocket.EMPTY, e);
+				}
+			}
+
+			if (closed) {
 
-			_listening = false;
+				try {
 
-			if (mServerSocket != null) {
+					closeListener();
+				} catch (IOException e) {
 
-				mServerSocket.close();
-				mServerSocket = null;
+					Log.e(TAG, BluetoothSocket.EMPTY, e);
+				}
 			}
+		}
+	}
+
+	/**
+	 * Record the allocator the listening channel came from, so that #close
+	 * gives it back.
+	 */
+	void setChannel(RfcommChannelAllocator allocator, int channel) {
+
+		mAllocator = allocator;
+		mChannel = channel;
+	}
+
+	private void closeListener() throws IOException {
+
+		try {
 
-			// mSocket.closeNative();
 			mSocket.close();
+		} finally {
+
+			if (mAllocator != null) {
+
+				mAllocator.release(mChannel);
+			}
+		}
+	}
+
+	private static final class Accepted {
+
+		final BluetoothSocket mSocket;
+
+		final long mTime = System.nanoTime();
+
+		Accepted(BluetoothSocket socket) {
+
+			mSocket = socket;
 		}
 	}
 }
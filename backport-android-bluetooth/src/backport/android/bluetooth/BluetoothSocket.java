@@ -35,8 +35,12 @@ package backport.android.bluetooth;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.lang.reflect.Field;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutionException;
 
 import android.bluetooth.RfcommSocket;
 import android.util.Log;
@@ -106,15 +110,59 @@ public final class BluetoothSocket implements Closeable {
 	private final boolean mEncrypt;
 
 	// private final BluetoothInputStream mInputStream;
-	private InputStream mInputStream;
+	private BluetoothInputStream mInputStream;
+
+	private boolean mInputBuffered;
+
+	private int mSoTimeout;
+
+	private BluetoothConnectPolicy mConnectPolicy = new BluetoothConnectPolicy();
+
+	private volatile int mConnectAttempts;
+
+	private volatile long mConnectTimeMs = -1;
+
+	private volatile long mSdpTimeMs = -1;
+
+	private volatile BluetoothSocketStats.Recorder mStats;
+
+	private BluetoothSendQueue mSendQueue;
+
+	private int mSendQueueCapacity = BluetoothSendQueue.DEFAULT_CAPACITY;
+
+	private int mSendQueueOverflowPolicy = BluetoothSendQueue.OVERFLOW_BLOCK;
+
+	private volatile BluetoothMemoryBudget mMemoryBudget;
+
+	private volatile BluetoothRateLimiter mRateLimiter;
 
 	// private final BluetoothOutputStream mOutputStream;
-	private OutputStream mOutputStream;
+	private BluetoothOutputStream mOutputStream;
+
+	private int mCoalescingBufferSize;
+
+	private int mCoalescingFlushDelayMs;
 
 	// private int mSocketData; /* used by native code only */
 
 	private RfcommSocket mRfcommSocket;
 
+	private BluetoothChannel mChannel;
+
+	private volatile boolean mClosed;
+
+	/** guarded by this */
+	private boolean mDestroyed;
+
+	/**
+	 * The streams of mRfcommSocket have been fetched; they keep its file
+	 * descriptor, so it can no longer be recreated for a connect retry.
+	 * Guarded by this.
+	 */
+	private boolean mStreamsTaken;
+
+	private final BluetoothSocketReaper.Ref mReaperRef;
+
 	/**
 	 * Construct a Bluetooth.
 	 * 
@@ -147,6 +195,9 @@ public final class BluetoothSocket implements Closeable {
 		} else {
 			initSocketFromFdNative(fd);
 		}
+
+		mReaperRef = BluetoothSocketReaper.register(this, mRfcommSocket,
+				address, port);
 		// mInputStream = new BluetoothInputStream(this);
 		// mOutputStream = new BluetoothOutputStream(this);
 	}
@@ -174,6 +225,11 @@ public final class BluetoothSocket implements Closeable {
 	// /* package */native int availableNative();
 	int availableNative() {
 
+		synchronized (this) {
+
+			mStreamsTaken = true;
+		}
+
 		try {
 
 			return mRfcommSocket.getInputStream().available();
@@ -195,62 +251,80 @@ public final class BluetoothSocket implements Closeable {
 	/**
 	 * Closes this socket. This will cause other blocking calls on this socket
 	 * to immediately throw an IOException.
+	 * 
+	 * Close never waits for those calls: a pending connect is interrupted and
+	 * the native socket is shut down and destroyed first, which wakes blocked
+	 * reads and writes, and only then are the streams closed. Data still held
+	 * by a coalescing output stream is discarded. Calling close again does
+	 * nothing.
 	 */
 	public void close() throws IOException {
 
-		if (mInputStream != null) {
+		synchronized (this) {
 
-			try {
+			if (mClosed) {
 
-				mInputStream.close();
-			} catch (IOException e) {
+				return;
+			}
 
-				Log.e(TAG, EMPTY, e);
+			mClosed = true;
+
+			if (mSendQueue != null) {
+
+				mSendQueue.close();
 			}
 		}
 
-		if (mOutputStream != null) {
+		BluetoothSocketReaper.unregister(mReaperRef);
 
-			try {
+		closeNative();
 
-				mOutputStream.close();
-			} catch (IOException e) {
+		// the native socket is gone: neither stream may flush or shut it
+		// down, nor wait for a writer that still holds its lock.
+		if (mInputStream != null) {
 
-				Log.e(TAG, EMPTY, e);
-			}
+			mInputStream.abort();
 		}
 
-		closeNative();
+		if (mOutputStream != null) {
+
+			mOutputStream.abort();
+		}
+
+		BluetoothMemoryBudget budget = mMemoryBudget;
+
+		if (budget != null) {
+
+			// senders paused by the budget would otherwise wait forever.
+			budget.wakeUp();
+		}
 	}
 
 	// /* package */native void closeNative();
 	void closeNative() {
 
+		// acceptをタイムアウトしたサーバーソケットはfdがnullなので、以下の呼び出しは
+		// IOExceptionを発する。無視してよいが、destroyは必ず行う。
+
 		try {
 
-			mRfcommSocket.getFileDescriptor();
+			// connects are always asynchronous (see #connectOnce), so this
+			// does not wait for the remote device.
+			mRfcommSocket.interruptAsyncConnect();
 		} catch (IOException e) {
 
-			// acceptをタイムアウトしたサーバーソケットはfdがnullなのでIOExceptionを発する。
-			// 無視してよい.
-
-			return;
+			// no connect in progress.
 		}
 
 		try {
 
 			mRfcommSocket.shutdown();
-
 		} catch (IOException e) {
 
-			// acceptをタイムアウトしたサーバーソケットはfdがnullなのでIOExceptionを発する。
-			// 無視してよい.
-
-			return;
+			// not connected; the descriptor is released all the same.
 		}
 
 		destroyNative();
-
 	}
 
 	/**
@@ -259,54 +333,252 @@ public final class BluetoothSocket implements Closeable {
 	 * without an exception then this socket is now connected. #close can be
 	 * used to abort this call from another thread.
 	 * 
+	 * Attempts are made as described by the #BluetoothConnectPolicy set with
+	 * #setConnectPolicy; by default a single attempt without timeout. A retry
+	 * needs a new native socket, so once a stream or the channel has been
+	 * taken from this socket only one attempt is made.
+	 * 
 	 * @throws IOException
 	 *             On error, for example connection failure
 	 */
 	public void connect() throws IOException {
-		connectNative(mAddress, mPort, -1);
+		connectNative(mAddress, mPort, mConnectPolicy);
+	}
+
+	/**
+	 * Set the retry, back-off and timeout policy used by #connect.
+	 * 
+	 * @param policy
+	 *            the policy, or null for a single attempt without timeout
+	 */
+	public void setConnectPolicy(BluetoothConnectPolicy policy) {
+
+		mConnectPolicy = (policy != null) ? policy
+				: new BluetoothConnectPolicy();
+	}
+
+	/**
+	 * @return the number of attempts made by the last #connect
+	 */
+	public int getConnectAttempts() {
+
+		return mConnectAttempts;
+	}
+
+	/**
+	 * @return milliseconds the last successful #connect took, including
+	 *         failed attempts and back-off, or -1 if not connected yet
+	 */
+	public long getConnectTime() {
+
+		return mConnectTimeMs;
+	}
+
+	/**
+	 * Start connecting to the remote device without blocking. The returned
+	 * future completes when the connection is made, fails, or timeoutMs has
+	 * passed, and can be cancelled. Several connects may be started from one
+	 * thread and waited on afterwards.
+	 * 
+	 * @param timeoutMs
+	 *            time allowed for the connect, or 0 for no limit
+	 * @return the pending connect
+	 * @throws IOException
+	 *             if the connect could not be started
+	 */
+	public BluetoothConnectFuture connectAsync(int timeoutMs)
+			throws IOException {
+
+		if (mClosed) {
+
+			throw new IOException("socket closed");
+		}
+
+		BluetoothConnectFuture future = new BluetoothConnectFuture(this,
+				timeoutMs);
+
+		if (!mRfcommSocket.connectAsync(mAddress, mPort)) {
+
+			throw new IOException("unable to start connect to " + mAddress);
+		}
+
+		return future;
 	}
 
 	// private native void connectNative(String address, int port, int timeout);
-	private void connectNative(String address, int port, int timeout) {
+	private void connectNative(String address, int port,
+			BluetoothConnectPolicy policy) throws IOException {
 
-		try {
+		long start = System.currentTimeMillis();
+		long deadline = (policy.getTotalTimeout() > 0) ? start
+				+ policy.getTotalTimeout() : Long.MAX_VALUE;
+		IOException failure = null;
+
+		mConnectAttempts = 0;
+		mConnectTimeMs = -1;
+
+		for (int attempt = 1; attempt <= policy.getMaxAttempts(); attempt++) {
+
+			if (mClosed) {
+
+				throw new IOException("socket closed");
+			}
+
+			if (deadline - System.currentTimeMillis() <= 0) {
+
+				break;
+			}
+
+			if (attempt > 1) {
 
-			for (int to = (timeout > 0 ? timeout : 100); to > 0; to -= 100) {
+				synchronized (this) {
 
-				boolean connect = mRfcommSocket.connect(address, port);
+					// streams taken meanwhile would keep the old descriptor.
+					if (mStreamsTaken) {
 
-				if (connect) {
+						break;
+					}
+
+					// a socket that failed to connect cannot be connected
+					// again.
+					mRfcommSocket.destroy();
+					mRfcommSocket.create();
+				}
+
+				if (mClosed) {
+
+					// closed while the socket was being replaced.
+					mRfcommSocket.destroy();
+
+					throw new IOException("socket closed");
+				}
+			}
+
+			mConnectAttempts = attempt;
+
+			try {
+
+				if (connectOnce(address, port, policy.getAttemptTimeout(),
+						deadline)) {
+
+					mConnectTimeMs = System.currentTimeMillis() - start;
 
 					return;
 				}
 
+				failure = new IOException("connect to " + address
+						+ " refused");
+			} catch (SocketTimeoutException e) {
+
+				// the attempt, or the whole connect, timed out; the deadline
+				// check ends the loop in the latter case.
+				failure = e;
+			} catch (InterruptedIOException e) {
+
+				throw e;
+			} catch (IOException e) {
+
+				failure = e;
+			}
+
+			if (attempt == policy.getMaxAttempts()
+					|| deadline - System.currentTimeMillis() <= 0
+					|| streamsTaken()) {
+
+				break;
+			}
+
+			long backoff = Math.min(policy.getBackoff(attempt), deadline
+					- System.currentTimeMillis());
+
+			if (backoff > 0) {
+
 				try {
 
-					Thread.sleep(100);
+					Thread.sleep(backoff);
 				} catch (InterruptedException e) {
 
-					// nop.
+					throw new InterruptedIOException("connect interrupted");
 				}
 			}
-		} catch (IOException e) {
+		}
 
-			Log.e(TAG, EMPTY, e);
+		IOException e = new IOException("unable to connect to " + address
+				+ " after " + mConnectAttempts + " attempt(s)");
+
+		if (failure != null) {
+
+			e.initCause(failure);
 		}
+
+		throw e;
+	}
+
+	/**
+	 * Make one connect attempt.
+	 * 
+	 * @return true if connected, false if the attempt was refused
+	 */
+	private boolean connectOnce(String address, int port, int timeoutMs,
+			long deadline) throws IOException {
+
+		// RfcommSocket#connect holds the socket lock until the remote device
+		// answers, which would keep #close from shutting the socket down. An
+		// asynchronous connect waits in short slices that close can abort.
+		int limit = 0;
+
+		if (timeoutMs > 0 || deadline != Long.MAX_VALUE) {
+
+			long remaining = deadline - System.currentTimeMillis();
+			limit = (int) Math.max(1, Math.min((timeoutMs > 0) ? timeoutMs
+					: Integer.MAX_VALUE, remaining));
+		}
+
+		if (!mRfcommSocket.connectAsync(address, port)) {
+
+			return false;
+		}
+
+		try {
+
+			new BluetoothConnectFuture(this, limit).get();
+
+			return true;
+		} catch (ExecutionException e) {
+
+			if (e.getCause() instanceof IOException) {
+
+				throw (IOException) e.getCause();
+			}
+
+			throw new IOException(e.toString());
+		} catch (InterruptedException e) {
+
+			mRfcommSocket.interruptAsyncConnect();
+
+			throw new InterruptedIOException("connect interrupted");
+		}
+	}
+
+	private synchronized boolean streamsTaken() {
+
+		return mStreamsTaken;
 	}
 
 	// private native void destroyNative();
 	void destroyNative() {
 
-		mRfcommSocket.destroy();
-	}
+		synchronized (this) {
 
-	@Override
-	protected void finalize() throws Throwable {
-		try {
-			close();
-		} finally {
-			super.finalize();
+			if (mDestroyed) {
+
+				return;
+			}
+
+			mDestroyed = true;
 		}
+
+		mRfcommSocket.destroy();
 	}
 
 	/**
@@ -347,36 +619,348 @@ public final class BluetoothSocket implements Closeable {
 	 * that stream will throw IOException until the associated socket is
 	 * connected.
 	 * 
+	 * The returned stream is a #BluetoothInputStream, which also offers
+	 * readFully, readInt, readShort and readFrame.
+	 * 
 	 * @return InputStream
 	 */
-	public InputStream getInputStream() throws IOException {
+	public synchronized InputStream getInputStream() throws IOException {
 
 		if (mInputStream != null) {
 
 			return mInputStream;
 		}
 
+		mStreamsTaken = true;
+
 		// return mInputStream;
-		mInputStream = new BluetoothInputStream(mRfcommSocket);
+		mInputStream = new BluetoothInputStream(this, mInputBuffered);
+		mInputStream.setTimeout(mSoTimeout);
+		mInputStream.setStats(mStats);
 		return mInputStream;
 	}
 
+	/**
+	 * Set the read timeout of the input stream. A read that gets no data
+	 * within timeoutMs throws java.net.SocketTimeoutException; the socket stays
+	 * usable. Data is waited for with a short back-off on the number of
+	 * available bytes, since the RFCOMM socket has no native read timeout.
+	 * 
+	 * @param timeoutMs
+	 *            timeout in milliseconds, or 0 to block forever
+	 */
+	public synchronized void setSoTimeout(int timeoutMs) {
+
+		if (timeoutMs < 0) {
+
+			throw new IllegalArgumentException("timeout < 0");
+		}
+
+		mSoTimeout = timeoutMs;
+
+		if (mInputStream != null) {
+
+			mInputStream.setTimeout(timeoutMs);
+		}
+	}
+
+	/**
+	 * @return the read timeout in milliseconds, 0 meaning none
+	 */
+	public synchronized int getSoTimeout() {
+
+		return mSoTimeout;
+	}
+
+	/**
+	 * Serve reads on the input stream from an internal buffer, so that small
+	 * reads do not each cost a native call. Must be called before the first
+	 * call to #getInputStream.
+	 * 
+	 * @param buffered
+	 *            true to enable the internal read buffer
+	 * @throws IllegalStateException
+	 *             if the input stream has already been created
+	 */
+	public void setInputBuffered(boolean buffered) {
+
+		if (mInputStream != null) {
+
+			throw new IllegalStateException("input stream already created");
+		}
+
+		mInputBuffered = buffered;
+	}
+
 	/**
 	 * Get the output stream associated with this socket. The output stream will
 	 * be returned even if the socket is not yet connected, but operations on
 	 * that stream will throw IOException until the associated socket is
 	 * connected.
 	 * 
+	 * The returned stream is a #BluetoothOutputStream, which can also send a
+	 * header and a payload as one transmission with write(byte[][]) or
+	 * write(ByteBuffer[]).
+	 * 
 	 * @return OutputStream
 	 */
-	public OutputStream getOutputStream() throws IOException {
+	public synchronized OutputStream getOutputStream() throws IOException {
 		// return mOutputStream;
 		if (mOutputStream != null) {
 
 			return mOutputStream;
 		}
 
-		mOutputStream = new BluetoothOutputStream(mRfcommSocket);
+		mStreamsTaken = true;
+		mOutputStream = new BluetoothOutputStream(this,
+				mCoalescingBufferSize, mCoalescingFlushDelayMs);
+		mOutputStream.setStats(mStats);
+		mOutputStream.setRateLimiter(mRateLimiter);
+		return mOutputStream;
+	}
+
+	/**
+	 * Collect small writes on the output stream and send them together, to
+	 * save RFCOMM frames for chatty senders. Buffered bytes are sent when the
+	 * buffer fills, when flush() is called, or at the latest flushDelayMs after
+	 * the first of them was written. Writes keep blocking as before whenever
+	 * they cause data to be sent. Must be called before the first call to
+	 * #getOutputStream.
+	 * 
+	 * @param bufferSize
+	 *            size of the coalescing buffer, or 0 to disable coalescing
+	 * @param flushDelayMs
+	 *            flush deadline in milliseconds, for example 2, or 0 to only
+	 *            flush on a full buffer or an explicit flush()
+	 * @throws IllegalStateException
+	 *             if the output stream has already been created
+	 */
+	public void setOutputCoalescing(int bufferSize, int flushDelayMs) {
+
+		if (mOutputStream != null) {
+
+			throw new IllegalStateException("output stream already created");
+		}
+
+		if (bufferSize < 0 || flushDelayMs < 0) {
+
+			throw new IllegalArgumentException();
+		}
+
+		mCoalescingBufferSize = bufferSize;
+		mCoalescingFlushDelayMs = flushDelayMs;
+	}
+
+	/**
+	 * Get a channel view of this socket, for reading and writing ByteBuffers.
+	 * Direct buffers are passed to the native socket without an extra copy,
+	 * and gathering writes are sent with a single native call. The channel
+	 * may be used together with the streams of this socket.
+	 * 
+	 * @return the channel of this socket
+	 * @throws IOException
+	 *             if the socket has been closed or not created
+	 */
+	public synchronized BluetoothChannel getChannel() throws IOException {
+
+		if (mClosed) {
+
+			throw new IOException("socket closed");
+		}
+
+		if (mChannel == null) {
+
+			mStreamsTaken = true;
+			mChannel = new BluetoothChannel(this);
+		}
+
+		return mChannel;
+	}
+
+	/**
+	 * Start or stop collecting I/O statistics for #getStats. Counting is off
+	 * by default and costs nothing but a null check while off. Turning it on
+	 * again starts from zero.
+	 */
+	public synchronized void setStatsEnabled(boolean enabled) {
+
+		mStats = enabled ? new BluetoothSocketStats.Recorder() : null;
+
+		if (mInputStream != null) {
+
+			mInputStream.setStats(mStats);
+		}
+
+		if (mOutputStream != null) {
+
+			mOutputStream.setStats(mStats);
+		}
+	}
+
+	/**
+	 * Get a snapshot of the I/O statistics of this socket. Byte and call
+	 * counts and latencies are only collected while enabled with
+	 * #setStatsEnabled; connect and SDP durations are always available.
+	 * 
+	 * @return statistics collected so far
+	 */
+	public BluetoothSocketStats getStats() {
+
+		return new BluetoothSocketStats(mStats, mConnectTimeMs, mSdpTimeMs);
+	}
+
+	BluetoothSocketStats.Recorder getStatsRecorder() {
+
+		return mStats;
+	}
+
+	void setSdpTime(long sdpTimeMs) {
+
+		mSdpTimeMs = sdpTimeMs;
+	}
+
+	/**
+	 * Stream count bytes of a file, starting at position, to the peer in
+	 * RFCOMM sized chunks, without loading the file onto the Java heap.
+	 * 
+	 * @return the number of bytes sent
+	 * @see BluetoothChannel#transferFrom(FileChannel, long, long, int)
+	 */
+	public long transferFrom(FileChannel src, long position, long count)
+			throws IOException {
+
+		return getChannel().transferFrom(src, position, count);
+	}
+
+	/**
+	 * Configure the queue used by #sendAsync. Must be called before the first
+	 * call to #sendAsync.
+	 * 
+	 * @param capacity
+	 *            number of messages that may wait to be written
+	 * @param overflowPolicy
+	 *            BluetoothSendQueue#OVERFLOW_BLOCK,
+	 *            BluetoothSendQueue#OVERFLOW_DROP_OLDEST or
+	 *            BluetoothSendQueue#OVERFLOW_FAIL_FAST
+	 * @throws IllegalStateException
+	 *             if the send queue is already running
+	 */
+	public synchronized void setSendQueue(int capacity, int overflowPolicy) {
+
+		if (mSendQueue != null) {
+
+			throw new IllegalStateException("send queue already created");
+		}
+
+		mSendQueueCapacity = capacity;
+		mSendQueueOverflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Queue data to be written to this socket by a writer thread, and return
+	 * at once. Messages are written in order through the output stream of
+	 * this socket. The array must not be modified until the returned future
+	 * is done.
+	 * 
+	 * @return completion handle of the write
+	 * @throws IOException
+	 *             if the socket is closed, a previous send failed, or the
+	 *             queue is full and its policy rejects the message
+	 */
+	public BluetoothSendQueue.SendFuture sendAsync(byte[] data)
+			throws IOException {
+
+		return getSendQueue().send(data);
+	}
+
+	/**
+	 * Get the queue behind #sendAsync, for its depth and latency metrics. The
+	 * queue and its writer thread are started on first use.
+	 */
+	public synchronized BluetoothSendQueue getSendQueue() throws IOException {
+
+		if (mClosed) {
+
+			throw new IOException("socket closed");
+		}
+
+		if (mSendQueue == null) {
+
+			mSendQueue = new BluetoothSendQueue(getOutputStream(),
+					mSendQueueCapacity, mSendQueueOverflowPolicy,
+					mMemoryBudget);
+		}
+
+		return mSendQueue;
+	}
+
+	/**
+	 * Cap the memory this connection may hold in buffers and queues. Must be
+	 * called before the streams of this socket are first used.
+	 * 
+	 * @param limitBytes
+	 *            bytes that may be buffered at the same time
+	 * @param policy
+	 *            BluetoothMemoryBudget#POLICY_PAUSE_READING,
+	 *            BluetoothMemoryBudget#POLICY_DROP or
+	 *            BluetoothMemoryBudget#POLICY_CLOSE
+	 * @throws IllegalStateException
+	 *             if a stream or the send queue already exists
+	 */
+	public synchronized void setMemoryBudget(long limitBytes, int policy) {
+
+		if (mInputStream != null || mOutputStream != null
+				|| mSendQueue != null) {
+
+			throw new IllegalStateException("streams already created");
+		}
+
+		mMemoryBudget = new BluetoothMemoryBudget(this, limitBytes, policy);
+	}
+
+	/**
+	 * @return the budget set with #setMemoryBudget, with its current usage,
+	 *         or null if memory is not accounted
+	 */
+	public BluetoothMemoryBudget getMemoryBudget() {
+
+		return mMemoryBudget;
+	}
+
+	/**
+	 * Limit the send rate of this socket. Sockets given the same limiter, such
+	 * as BluetoothRateLimiter#forDevice, share its rate.
+	 * 
+	 * @param limiter
+	 *            the limiter, or null to send at full speed
+	 */
+	public synchronized void setRateLimiter(BluetoothRateLimiter limiter) {
+
+		mRateLimiter = limiter;
+
+		if (mOutputStream != null) {
+
+			mOutputStream.setRateLimiter(limiter);
+		}
+	}
+
+	public BluetoothRateLimiter getRateLimiter() {
+
+		return mRateLimiter;
+	}
+
+	boolean isClosed() {
+
+		return mClosed;
+	}
+
+	BluetoothInputStream peekInputStream() {
+
+		return mInputStream;
+	}
+
+	BluetoothOutputStream peekOutputStream() {
+
 		return mOutputStream;
 	}
 
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import android.bluetooth.RfcommSocket;
+import android.util.Log;
+
+/**
+ * Releases the native socket of a #BluetoothSocket that became unreachable
+ * without being closed, and reports it as a leak.
+ *
+ * Every socket registers a phantom reference holding its RfcommSocket - never
+ * the BluetoothSocket itself - and unregisters it on close. A daemon thread
+ * waits on the reference queue, so sockets need no finalizer and are
+ * collected in a single GC cycle.
+ */
+final class BluetoothSocketReaper {
+
+	private static final String TAG = BluetoothSocketReaper.class
+			.getSimpleName();
+
+	static final class Ref extends PhantomReference<BluetoothSocket> {
+
+		final RfcommSocket mRfcommSocket;
+
+		final String mAddress;
+
+		final int mPort;
+
+		Ref(BluetoothSocket socket, RfcommSocket rfcommSocket, String address,
+				int port) {
+
+			super(socket, sQueue);
+			mRfcommSocket = rfcommSocket;
+			mAddress = address;
+			mPort = port;
+		}
+	}
+
+	private static final ReferenceQueue<BluetoothSocket> sQueue = new ReferenceQueue<BluetoothSocket>();
+
+	/** keeps the references themselves reachable until they are enqueued */
+	private static final Set<Ref> sLive = Collections
+			.synchronizedSet(new HashSet<Ref>());
+
+	static {
+
+		Thread thread = new Thread(new Runnable() {
+
+			public void run() {
+
+				reap();
+			}
+		}, TAG);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private BluetoothSocketReaper() {
+	}
+
+	static Ref register(BluetoothSocket socket, RfcommSocket rfcommSocket,
+			String address, int port) {
+
+		Ref ref = new Ref(socket, rfcommSocket, address, port);
+		sLive.add(ref);
+
+		return ref;
+	}
+
+	/**
+	 * The socket was closed; nothing left to clean up.
+	 */
+	static void unregister(Ref ref) {
+
+		if (sLive.remove(ref)) {
+
+			ref.clear();
+		}
+	}
+
+	/**
+	 * @return the number of sockets neither closed nor collected yet
+	 */
+	static int getLiveCount() {
+
+		return sLive.size();
+	}
+
+	private static void reap() {
+
+		for (;;) {
+
+			Ref ref;
+
+			try {
+
+				ref = (Ref) sQueue.remove();
+			} catch (InterruptedException e) {
+
+				continue;
+			}
+
+			if (!sLive.remove(ref)) {
+
+				continue;
+			}
+
+			RfcommSocket rfcommSocket = ref.mRfcommSocket;
+
+			if (rfcommSocket.isConnected()) {
+
+				Log.w(TAG, "leaked connected socket to " + ref.mAddress
+						+ " port " + ref.mPort + "; close it when done");
+			} else {
+
+				Log.d(TAG, "leaked unconnected socket, port " + ref.mPort);
+			}
+
+			try {
+
+				rfcommSocket.shutdown();
+			} catch (IOException e) {
+
+				// never connected, or already shut down.
+			}
+
+			rfcommSocket.destroy();
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * I/O statistics of a #BluetoothSocket, as returned by
+ * BluetoothSocket#getStats.
+ *
+ * Reads and writes are counted where they enter the native socket, so a read
+ * served from the buffer of a buffered input stream, or a write held in the
+ * coalescing buffer, is not a call of its own.
+ */
+public final class BluetoothSocketStats {
+
+	/**
+	 * Live counters, updated by the socket streams and channel while
+	 * statistics are enabled.
+	 */
+	static final class Recorder {
+
+		final AtomicLong mBytesRead = new AtomicLong();
+
+		final AtomicLong mBytesWritten = new AtomicLong();
+
+		final AtomicLong mReadCalls = new AtomicLong();
+
+		final AtomicLong mWriteCalls = new AtomicLong();
+
+		final AtomicLong mReadNanos = new AtomicLong();
+
+		final AtomicLong mWriteNanos = new AtomicLong();
+
+		final LatencyHistogram mReadLatency = new LatencyHistogram();
+
+		final LatencyHistogram mWriteLatency = new LatencyHistogram();
+
+		void recordRead(long bytes, long nanos) {
+
+			mReadCalls.incrementAndGet();
+
+			if (bytes > 0) {
+
+				mBytesRead.addAndGet(bytes);
+			}
+
+			mReadNanos.addAndGet(nanos);
+			mReadLatency.record(nanos);
+		}
+
+		void recordWrite(long bytes, long nanos) {
+
+			mWriteCalls.incrementAndGet();
+			mBytesWritten.addAndGet(bytes);
+			mWriteNanos.addAndGet(nanos);
+			mWriteLatency.record(nanos);
+		}
+	}
+
+	private final long mBytesRead;
+
+	private final long mBytesWritten;
+
+	private final long mReadCalls;
+
+	private final long mWriteCalls;
+
+	private final long mReadTimeMs;
+
+	private final long mWriteTimeMs;
+
+	private final long mConnectTimeMs;
+
+	private final long mSdpTimeMs;
+
+	private final LatencyHistogram mReadLatency;
+
+	private final LatencyHistogram mWriteLatency;
+
+	BluetoothSocketStats(Recorder recorder, long connectTimeMs, long sdpTimeMs) {
+
+		if (recorder == null) {
+
+			recorder = new Recorder();
+		}
+
+		mBytesRead = recorder.mBytesRead.get();
+		mBytesWritten = recorder.mBytesWritten.get();
+		mReadCalls = recorder.mReadCalls.get();
+		mWriteCalls = recorder.mWriteCalls.get();
+		mReadTimeMs = recorder.mReadNanos.get() / 1000000;
+		mWriteTimeMs = recorder.mWriteNanos.get() / 1000000;
+		mReadLatency = recorder.mReadLatency.snapshot();
+		mWriteLatency = recorder.mWriteLatency.snapshot();
+		mConnectTimeMs = connectTimeMs;
+		mSdpTimeMs = sdpTimeMs;
+	}
+
+	public long getBytesRead() {
+
+		return mBytesRead;
+	}
+
+	public long getBytesWritten() {
+
+		return mBytesWritten;
+	}
+
+	/**
+	 * @return the number of native read calls
+	 */
+	public long getReadCalls() {
+
+		return mReadCalls;
+	}
+
+	/**
+	 * @return the number of native write calls
+	 */
+	public long getWriteCalls() {
+
+		return mWriteCalls;
+	}
+
+	/**
+	 * @return milliseconds spent blocked in native reads
+	 */
+	public long getReadTime() {
+
+		return mReadTimeMs;
+	}
+
+	/**
+	 * @return milliseconds spent blocked in native writes
+	 */
+	public long getWriteTime() {
+
+		return mWriteTimeMs;
+	}
+
+	/**
+	 * @return milliseconds the connect took, or -1 if the socket was not
+	 *         connected by #connect
+	 */
+	public long getConnectTime() {
+
+		return mConnectTimeMs;
+	}
+
+	/**
+	 * @return milliseconds the service discovery for this socket took, or -1
+	 *         if there was none
+	 */
+	public long getSdpTime() {
+
+		return mSdpTimeMs;
+	}
+
+	public LatencyHistogram getReadLatency() {
+
+		return mReadLatency;
+	}
+
+	public LatencyHistogram getWriteLatency() {
+
+		return mWriteLatency;
+	}
+
+	@Override
+	public String toString() {
+
+		return "BluetoothSocketStats[read=" + mBytesRead + "B/" + mReadCalls
+				+ " calls/" + mReadTimeMs + "ms, written=" + mBytesWritten
+				+ "B/" + mWriteCalls + " calls/" + mWriteTimeMs
+				+ "ms, connect=" + mConnectTimeMs + "ms, sdp=" + mSdpTimeMs
+				+ "ms]";
+	}
+}
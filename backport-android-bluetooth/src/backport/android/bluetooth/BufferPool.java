@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Shared pool of byte arrays and direct ByteBuffers for Bluetooth I/O. The
+ * socket streams, #MessageSocket and applications borrow their buffers here,
+ * so sustained transfers allocate nothing once the pool is warm.
+ *
+ * Buffers are grouped in power-of-two size classes from #MIN_CLASS_SIZE to
+ * #MAX_CLASS_SIZE. Each class keeps at most #getMaxBuffers idle buffers of
+ * each kind; more are left to the GC. Requests larger than #MAX_CLASS_SIZE
+ * are allocated on demand and never pooled.
+ *
+ * A buffer released while it is already idle in the pool is ignored with a
+ * warning, so that a double release cannot hand one buffer to two callers.
+ *
+ * In debug mode (see #setDebug) the pool remembers where every outstanding
+ * buffer was acquired, warns about buffers released twice or not acquired
+ * here, and #logOutstanding lists the buffers not given back.
+ */
+public final class BufferPool {
+
+	private static final String TAG = BufferPool.class.getSimpleName();
+
+	public static final int MIN_CLASS_SIZE = 256;
+
+	public static final int MAX_CLASS_SIZE = 64 * 1024;
+
+	public static final int DEFAULT_MAX_BUFFERS_PER_CLASS = 8;
+
+	private static final BufferPool DEFAULT_POOL = new BufferPool();
+
+	public static BufferPool getDefault() {
+
+		return DEFAULT_POOL;
+	}
+
+	private final Object[][] mFree;
+
+	private final Object[][] mFreeDirect;
+
+	private final int[] mFreeCount;
+
+	private final int[] mFreeDirectCount;
+
+	private final int[] mMaxBuffers;
+
+	private long mHits;
+
+	private long mMisses;
+
+	private long mDiscards;
+
+	/** acquire site of every outstanding buffer, in debug mode only */
+	private Map<Object, Throwable> mOutstanding;
+
+	BufferPool() {
+
+		int classes = classIndex(MAX_CLASS_SIZE) + 1;
+		mFree = new Object[classes][DEFAULT_MAX_BUFFERS_PER_CLASS];
+		mFreeDirect = new Object[classes][DEFAULT_MAX_BUFFERS_PER_CLASS];
+		mFreeCount = new int[classes];
+		mFreeDirectCount = new int[classes];
+		mMaxBuffers = new int[classes];
+
+		for (int i = 0; i < classes; i++) {
+
+			mMaxBuffers[i] = DEFAULT_MAX_BUFFERS_PER_CLASS;
+		}
+	}
+
+	/**
+	 * Borrow a buffer of at least size bytes. The returned array must be given
+	 * back with #release once the caller no longer touches it.
+	 */
+	public synchronized byte[] acquire(int size) {
+
+		byte[] buffer;
+
+		if (size > MAX_CLASS_SIZE) {
+
+			mMisses++;
+			buffer = new byte[size];
+		} else {
+
+			int index = classIndex(size);
+			buffer = (byte[]) take(mFree[index], mFreeCount, index);
+
+			if (buffer == null) {
+
+				buffer = new byte[MIN_CLASS_SIZE << index];
+			}
+		}
+
+		track(buffer);
+
+		return buffer;
+	}
+
+	/**
+	 * Return a buffer obtained from #acquire. Buffers that do not belong to a
+	 * size class, or that would overflow the class, are left to the GC.
+	 */
+	public synchronized void release(byte[] buffer) {
+
+		if (buffer == null || !untrack(buffer)) {
+
+			return;
+		}
+
+		int index = poolableIndex(buffer.length);
+
+		if (index < 0) {
+
+			return;
+		}
+
+		put(mFree, mFreeCount, index, buffer);
+	}
+
+	/**
+	 * Borrow a direct buffer with a capacity of at least size bytes, cleared.
+	 * Give it back with #releaseDirect.
+	 */
+	public synchronized ByteBuffer acquireDirect(int size) {
+
+		ByteBuffer buffer;
+
+		if (size > MAX_CLASS_SIZE) {
+
+			mMisses++;
+			buffer = ByteBuffer.allocateDirect(size);
+		} else {
+
+			int index = classIndex(size);
+			buffer = (ByteBuffer) take(mFreeDirect[index], mFreeDirectCount,
+					index);
+
+			if (buffer == null) {
+
+				buffer = ByteBuffer.allocateDirect(MIN_CLASS_SIZE << index);
+			}
+		}
+
+		track(buffer);
+
+		return buffer;
+	}
+
+	/**
+	 * Return a buffer obtained from #acquireDirect.
+	 */
+	public synchronized void releaseDirect(ByteBuffer buffer) {
+
+		if (buffer == null || !buffer.isDirect() || !untrack(buffer)) {
+
+			return;
+		}
+
+		int index = poolableIndex(buffer.capacity());
+
+		if (index < 0) {
+
+			return;
+		}
+
+		buffer.clear();
+		put(mFreeDirect, mFreeDirectCount, index, buffer);
+	}
+
+	/**
+	 * Set how many idle buffers of each kind the size class holding size
+	 * bytes may keep. Surplus idle buffers are dropped.
+	 */
+	public synchronized void setMaxBuffers(int size, int max) {
+
+		if (size > MAX_CLASS_SIZE || max < 0) {
+
+			throw new IllegalArgumentException();
+		}
+
+		int index = classIndex(size);
+		mMaxBuffers[index] = max;
+		mFree[index] = resize(mFree[index], mFreeCount, index, max);
+		mFreeDirect[index] = resize(mFreeDirect[index], mFreeDirectCount,
+				index, max);
+	}
+
+	public synchronized int getMaxBuffers(int size) {
+
+		if (size > MAX_CLASS_SIZE) {
+
+			return 0;
+		}
+
+		return mMaxBuffers[classIndex(size)];
+	}
+
+	/**
+	 * @return the number of acquires served from the pool
+	 */
+	public synchronized long getHits() {
+
+		return mHits;
+	}
+
+	/**
+	 * @return the number of acquires that had to allocate
+	 */
+	public synchronized long getMisses() {
+
+		return mMisses;
+	}
+
+	/**
+	 * @return the number of releases dropped because the class was full
+	 */
+	public synchronized long getDiscards() {
+
+		return mDiscards;
+	}
+
+	/**
+	 * Track outstanding buffers. Costs a stack trace per acquire; meant for
+	 * development builds. Enable it before I/O starts, as buffers acquired
+	 * earlier are reported as foreign when released.
+	 */
+	public synchronized void setDebug(boolean debug) {
+
+		if (debug && mOutstanding == null) {
+
+			mOutstanding = new IdentityHashMap<Object, Throwable>();
+		} else if (!debug) {
+
+			mOutstanding = null;
+		}
+	}
+
+	/**
+	 * @return the number of buffers acquired and not released since debug
+	 *         mode was enabled, or -1 when it is off
+	 */
+	public synchronized int getOutstandingCount() {
+
+		return (mOutstanding == null) ? -1 : mOutstanding.size();
+	}
+
+	/**
+	 * In debug mode, log the acquire site of every outstanding buffer.
+	 */
+	public synchronized void logOutstanding() {
+
+		if (mOutstanding == null) {
+
+			return;
+		}
+
+		for (Map.Entry<Object, Throwable> entry : mOutstanding.entrySet()) {
+
+			Log.w(TAG, "outstanding buffer of " + size(entry.getKey())
+					+ " bytes", entry.getValue());
+		}
+	}
+
+	private Object take(Object[] free, int[] count, int index) {
+
+		if (count[index] == 0) {
+
+			mMisses++;
+
+			return null;
+		}
+
+		mHits++;
+
+		int top = --count[index];
+		Object buffer = free[top];
+		free[top] = null;
+
+		return buffer;
+	}
+
+	private void put(Object[][] free, int[] count, int index, Object buffer) {
+
+		Object[] idle = free[index];
+
+		// at most a few entries per class: cheap enough for every release.
+		for (int i = 0; i < count[index]; i++) {
+
+			if (idle[i] == buffer) {
+
+				Log.w(TAG, "released a buffer of " + size(buffer)
+						+ " bytes twice", new Throwable());
+
+				return;
+			}
+		}
+
+		if (count[index] < mMaxBuffers[index]) {
+
+			free[index][count[index]++] = buffer;
+		} else {
+
+			mDiscards++;
+		}
+	}
+
+	private static Object[] resize(Object[] free, int[] count, int index,
+			int max) {
+
+		Object[] resized = new Object[max];
+		int keep = Math.min(count[index], max);
+		System.arraycopy(free, 0, resized, 0, keep);
+		count[index] = keep;
+
+		return resized;
+	}
+
+	private void track(Object buffer) {
+
+		if (mOutstanding != null) {
+
+			mOutstanding.put(buffer, new Throwable("acquired here"));
+		}
+	}
+
+	/**
+	 * @return false if the buffer must not go back into the pool
+	 */
+	private boolean untrack(Object buffer) {
+
+		if (mOutstanding == null || mOutstanding.remove(buffer) != null) {
+
+			return true;
+		}
+
+		Log.w(TAG, "released a buffer of " + size(buffer)
+				+ " bytes that is not outstanding", new Throwable());
+
+		return false;
+	}
+
+	private static int size(Object buffer) {
+
+		if (buffer instanceof ByteBuffer) {
+
+			return ((ByteBuffer) buffer).capacity();
+		}
+
+		return ((byte[]) buffer).length;
+	}
+
+	/**
+	 * @return the class of a buffer of exactly length bytes, or -1
+	 */
+	private static int poolableIndex(int length) {
+
+		if (length > MAX_CLASS_SIZE) {
+
+			return -1;
+		}
+
+		int index = classIndex(length);
+
+		return ((MIN_CLASS_SIZE << index) == length) ? index : -1;
+	}
+
+	private static int classIndex(int size) {
+
+		int index = 0;
+
+		for (int classSize = MIN_CLASS_SIZE; classSize < size; classSize <<= 1) {
+
+			index++;
+		}
+
+		return index;
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with fixed buckets.
+ *
+ * Recording is a bucket lookup over a short table and one atomic increment,
+ * so it can stay on the I/O path. Bucket upper bounds are in microseconds;
+ * the last bucket collects everything above the largest bound.
+ */
+public final class LatencyHistogram {
+
+	private static final long[] UPPER_BOUNDS_US = { 50, 100, 250, 500, 1000,
+			2000, 5000, 10000, 20000, 50000, 100000, 250000, 500000, 1000000,
+			Long.MAX_VALUE };
+
+	private final AtomicLongArray mCounts;
+
+	LatencyHistogram() {
+
+		mCounts = new AtomicLongArray(UPPER_BOUNDS_US.length);
+	}
+
+	private LatencyHistogram(LatencyHistogram source) {
+
+		this();
+
+		for (int i = 0; i < UPPER_BOUNDS_US.length; i++) {
+
+			mCounts.set(i, source.mCounts.get(i));
+		}
+	}
+
+	void record(long nanos) {
+
+		long micros = nanos / 1000;
+		int i = 0;
+
+		while (micros > UPPER_BOUNDS_US[i]) {
+
+			i++;
+		}
+
+		mCounts.incrementAndGet(i);
+	}
+
+	LatencyHistogram snapshot() {
+
+		return new LatencyHistogram(this);
+	}
+
+	/**
+	 * @return the number of buckets
+	 */
+	public int getBucketCount() {
+
+		return UPPER_BOUNDS_US.length;
+	}
+
+	/**
+	 * @return the inclusive upper bound of bucket i in microseconds, or
+	 *         Long.MAX_VALUE for the last bucket
+	 */
+	public long getBucketUpperBound(int i) {
+
+		return UPPER_BOUNDS_US[i];
+	}
+
+	/**
+	 * @return the number of samples in bucket i
+	 */
+	public long getCount(int i) {
+
+		return mCounts.get(i);
+	}
+
+	/**
+	 * @return the number of samples in all buckets
+	 */
+	public long getTotalCount() {
+
+		long total = 0;
+
+		for (int i = 0; i < UPPER_BOUNDS_US.length; i++) {
+
+			total += mCounts.get(i);
+		}
+
+		return total;
+	}
+
+	/**
+	 * Estimate a percentile from the buckets.
+	 *
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return the upper bound in microseconds of the bucket holding the
+	 *         percentile, Long.MAX_VALUE if it falls in the last bucket, or 0
+	 *         if there are no samples
+	 */
+	public long getPercentile(double percentile) {
+
+		long total = getTotalCount();
+
+		if (total == 0) {
+
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+
+		for (int i = 0; i < UPPER_BOUNDS_US.length; i++) {
+
+			seen += mCounts.get(i);
+
+			if (seen >= rank) {
+
+				return UPPER_BOUNDS_US[i];
+			}
+		}
+
+		return Long.MAX_VALUE;
+	}
+}
@@ -0,0 +1,434 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Message framing on top of a #BluetoothSocket.
+ *
+ * Each message is sent as its length, encoded as an unsigned varint (seven
+ * bits per byte, least significant group first), followed by the payload.
+ * Received bytes are decoded incrementally, so a message may arrive split over
+ * any number of reads, and one read may carry several messages.
+ *
+ * Received messages are handed to a #Handler as a slice of a buffer that is
+ * only valid during the call. A message that arrived within one read is passed
+ * straight out of the receive buffer; one that spans reads is assembled in a
+ * buffer borrowed from the #BufferPool and given back after the handler
+ * returns. Receiving therefore allocates nothing in steady state.
+ *
+ * Assembly buffers are charged to the #BluetoothMemoryBudget of the socket, if
+ * it has one. Under BluetoothMemoryBudget#POLICY_DROP a message that does not
+ * fit is skipped without reaching the handler.
+ */
+public final class MessageSocket implements Closeable {
+
+	/** longest varint header, enough for any int length */
+	static final int MAX_HEADER_SIZE = 5;
+
+	static final int RECEIVE_BUFFER_SIZE = 1024;
+
+	/** messages up to this size are copied next to their header and sent with one write */
+	static final int COPY_THRESHOLD = 512;
+
+	/**
+	 * Receives decoded messages.
+	 */
+	public interface Handler {
+
+		/**
+		 * A complete message has arrived. buffer is only valid until this
+		 * method returns.
+		 */
+		void onMessage(MessageSocket socket, byte[] buffer, int offset,
+				int length);
+	}
+
+	private final BluetoothSocket mSocket;
+
+	private final int mMaxFrameSize;
+
+	private final BluetoothMemoryBudget mBudget;
+
+	private final Object mSendLock = new Object();
+
+	private final byte[] mSendBuffer;
+
+	private final ByteBuffer[] mSendParts = new ByteBuffer[2];
+
+	private final ByteBuffer mSendHeader;
+
+	/* receive side, used by a single reader thread */
+
+	/** guards mPumping, mClosed and the release of the pooled buffers */
+	private final Object mReceiveLock = new Object();
+
+	/** a pump is in progress; it releases the buffers if closed meanwhile */
+	private boolean mPumping;
+
+	private boolean mClosed;
+
+	private byte[] mReceiveBuffer;
+
+	private int mHeaderValue;
+
+	private int mHeaderShift;
+
+	private boolean mInHeader = true;
+
+	private byte[] mFrame;
+
+	private int mFrameLength;
+
+	private int mFrameFilled;
+
+	/** the current message is being discarded */
+	private boolean mSkipping;
+
+	/**
+	 * @param socket
+	 *            a connected socket
+	 * @param maxFrameSize
+	 *            largest message accepted in either direction
+	 */
+	public MessageSocket(BluetoothSocket socket, int maxFrameSize) {
+
+		if (maxFrameSize <= 0) {
+
+			throw new IllegalArgumentException("maxFrameSize");
+		}
+
+		mSocket = socket;
+		mMaxFrameSize = maxFrameSize;
+		mBudget = socket.getMemoryBudget();
+		mSendBuffer = new byte[MAX_HEADER_SIZE + COPY_THRESHOLD];
+		mSendHeader = ByteBuffer.allocate(MAX_HEADER_SIZE);
+	}
+
+	public BluetoothSocket getSocket() {
+
+		return mSocket;
+	}
+
+	public int getMaxFrameSize() {
+
+		return mMaxFrameSize;
+	}
+
+	/**
+	 * Send one message. Blocks like a write on the socket output stream.
+	 *
+	 * @throws IOException
+	 *             if length exceeds the maximum frame size, or on a write
+	 *             error
+	 */
+	public void send(byte[] buffer, int offset, int length) throws IOException {
+
+		if (length < 0 || length > mMaxFrameSize) {
+
+			throw new IOException("invalid frame length " + length);
+		}
+
+		BluetoothOutputStream out = (BluetoothOutputStream) mSocket
+				.getOutputStream();
+
+		synchronized (mSendLock) {
+
+			if (length <= COPY_THRESHOLD) {
+
+				int header = writeVarint(length, mSendBuffer, 0);
+				System.arraycopy(buffer, offset, mSendBuffer, header, length);
+				out.write(mSendBuffer, 0, header + length);
+
+				return;
+			}
+
+			mSendHeader.clear();
+			mSendHeader.limit(writeVarint(length, mSendHeader.array(), 0));
+			mSendParts[0] = mSendHeader;
+			mSendParts[1] = ByteBuffer.wrap(buffer, offset, length);
+
+			try {
+
+				out.write(mSendParts);
+			} finally {
+
+				mSendParts[1] = null;
+			}
+		}
+	}
+
+	public void send(byte[] buffer) throws IOException {
+
+		send(buffer, 0, buffer.length);
+	}
+
+	/**
+	 * Do one read on the socket and dispatch every message it completes.
+	 *
+	 * @return false once the stream has ended
+	 * @throws IOException
+	 *             on a read error, or if the peer announces a message larger
+	 *             than the maximum frame size
+	 */
+	public boolean pump(Handler handler) throws IOException {
+
+		InputStream in = mSocket.getInputStream();
+
+		synchronized (mReceiveLock) {
+
+			if (mClosed) {
+
+				throw new IOException("socket closed");
+			}
+
+			mPumping = true;
+
+			if (mReceiveBuffer == null) {
+
+				mReceiveBuffer = BufferPool.getDefault().acquire(
+						RECEIVE_BUFFER_SIZE);
+			}
+		}
+
+		boolean ended = false;
+
+		try {
+
+			int read = in.read(mReceiveBuffer, 0, mReceiveBuffer.length);
+
+			if (read == -1) {
+
+				ended = true;
+
+				if (!mInHeader || mHeaderShift > 0) {
+
+					throw new IOException("stream ended inside a message");
+				}
+
+				return false;
+			}
+
+			decode(mReceiveBuffer, 0, read, handler);
+
+			return true;
+		} finally {
+
+			synchronized (mReceiveLock) {
+
+				mPumping = false;
+
+				if (ended || mClosed) {
+
+					releaseBuffers();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Dispatch messages until the stream ends or fails.
+	 */
+	public void receive(Handler handler) throws IOException {
+
+		try {
+
+			while (pump(handler)) {
+				// keep reading.
+			}
+		} finally {
+
+			synchronized (mReceiveLock) {
+
+				releaseBuffers();
+			}
+		}
+	}
+
+	/**
+	 * Closes the underlying socket and gives the receive buffers back to the
+	 * pool, at once or, if a pump is in progress, when it returns.
+	 */
+	public void close() throws IOException {
+
+		try {
+
+			mSocket.close();
+		} finally {
+
+			synchronized (mReceiveLock) {
+
+				mClosed = true;
+
+				if (!mPumping) {
+
+					releaseBuffers();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Feed received bytes to the decoder.
+	 */
+	void decode(byte[] data, int offset, int length, Handler handler)
+			throws IOException {
+
+		int end = offset + length;
+
+		while (offset < end) {
+
+			if (mInHeader) {
+
+				int b = data[offset++] & 0xff;
+
+				// the last byte carries the top four bits of the length and
+				// ends the header: anything more would overflow an int.
+				if (mHeaderShift == 7 * (MAX_HEADER_SIZE - 1) && b > 0x0f) {
+
+					throw new IOException("malformed length");
+				}
+
+				mHeaderValue |= (b & 0x7f) << mHeaderShift;
+				mHeaderShift += 7;
+
+				if ((b & 0x80) != 0) {
+
+					continue;
+				}
+
+				mFrameLength = mHeaderValue;
+				mHeaderValue = 0;
+				mHeaderShift = 0;
+
+				if (mFrameLength < 0 || mFrameLength > mMaxFrameSize) {
+
+					throw new IOException("invalid frame length "
+							+ mFrameLength);
+				}
+
+				mInHeader = false;
+				mFrameFilled = 0;
+
+				// the whole message is here: no copy needed.
+				if (end - offset >= mFrameLength) {
+
+					mInHeader = true;
+
+					int frameOffset = offset;
+					offset += mFrameLength;
+					handler.onMessage(this, data, frameOffset, mFrameLength);
+
+					continue;
+				}
+
+				if (mBudget == null || mBudget.admit(mFrameLength)) {
+
+					mFrame = BufferPool.getDefault().acquire(mFrameLength);
+				} else {
+
+					mSkipping = true;
+				}
+			}
+
+			int n = Math.min(end - offset, mFrameLength - mFrameFilled);
+
+			if (mSkipping) {
+
+				mFrameFilled += n;
+				offset += n;
+
+				if (mFrameFilled == mFrameLength) {
+
+					mSkipping = false;
+					mInHeader = true;
+				}
+
+				continue;
+			}
+
+			System.arraycopy(data, offset, mFrame, mFrameFilled, n);
+			mFrameFilled += n;
+			offset += n;
+
+			if (mFrameFilled == mFrameLength) {
+
+				byte[] frame = mFrame;
+				mFrame = null;
+				mInHeader = true;
+
+				try {
+
+					handler.onMessage(this, frame, 0, mFrameLength);
+				} finally {
+
+					BufferPool.getDefault().release(frame);
+
+					if (mBudget != null) {
+
+						mBudget.release(mFrameLength);
+					}
+				}
+			}
+		}
+	}
+
+	/** called with mReceiveLock held */
+	private void releaseBuffers() {
+
+		BufferPool pool = BufferPool.getDefault();
+
+		if (mReceiveBuffer != null) {
+
+			pool.release(mReceiveBuffer);
+			mReceiveBuffer = null;
+		}
+
+		if (mFrame != null) {
+
+			pool.release(mFrame);
+			mFrame = null;
+
+			if (mBudget != null) {
+
+				mBudget.release(mFrameLength);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of bytes written
+	 */
+	static int writeVarint(int value, byte[] buffer, int offset) {
+
+		int start = offset;
+
+		while ((value & ~0x7f) != 0) {
+
+			buffer[offset++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+
+		buffer[offset++] = (byte) value;
+
+		return offset - start;
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.io.IOException;
+
+/**
+ * Picks RFCOMM channels for listening sockets.
+ *
+ * Channels this process listens on are kept in a bitmap and skipped; they
+ * are given back with #release when the server socket closes. A channel the
+ * stack refused to bind is remembered for #REFUSED_MEMORY_MS and tried only
+ * after every other candidate, so a listen usually costs one native bind
+ * instead of one per occupied channel.
+ *
+ * Candidates are tried in ascending order from the first channel of the
+ * range.
+ */
+final class RfcommChannelAllocator {
+
+	/** how long a refused channel is tried last */
+	static final long REFUSED_MEMORY_MS = 30000;
+
+	private final int mFirst;
+
+	private final int mLast;
+
+	private final int mReserved;
+
+	/** bit n set: channel n is listened on by this process */
+	private int mOwned;
+
+	/** when channel n was last refused, or 0 */
+	private final long[] mRefusedAt;
+
+	RfcommChannelAllocator(int first, int last, int... reserved) {
+
+		if (first < 1 || last > 30 || first > last) {
+
+			throw new IllegalArgumentException();
+		}
+
+		mFirst = first;
+		mLast = last;
+		mRefusedAt = new long[last + 1];
+
+		int mask = 0;
+
+		for (int channel : reserved) {
+
+			mask |= 1 << channel;
+		}
+
+		mReserved = mask;
+	}
+
+	/**
+	 * Take the most likely free channel not tried yet and mark it owned.
+	 *
+	 * @param tried
+	 *            bitmap of the channels already tried by this listen
+	 * @return the channel, or -1 if every candidate is owned or tried
+	 */
+	synchronized int acquire(int tried) {
+
+		long now = System.currentTimeMillis();
+		int best = -1;
+		long bestRefusedAt = Long.MAX_VALUE;
+
+		for (int channel = mFirst; channel <= mLast; channel++) {
+
+			int bit = 1 << channel;
+
+			if (((mOwned | mReserved | tried) & bit) != 0) {
+
+				continue;
+			}
+
+			long refusedAt = mRefusedAt[channel];
+
+			if (refusedAt == 0 || now - refusedAt > REFUSED_MEMORY_MS) {
+
+				best = channel;
+
+				break;
+			}
+
+			if (refusedAt < bestRefusedAt) {
+
+				best = channel;
+				bestRefusedAt = refusedAt;
+			}
+		}
+
+		if (best != -1) {
+
+			mOwned |= 1 << best;
+		}
+
+		return best;
+	}
+
+	/**
+	 * Give back a channel that the stack refused to bind.
+	 */
+	synchronized void refuse(int channel) {
+
+		mOwned &= ~(1 << channel);
+		mRefusedAt[channel] = System.currentTimeMillis();
+	}
+
+	/**
+	 * Give back a channel whose server socket has closed.
+	 */
+	synchronized void release(int channel) {
+
+		mOwned &= ~(1 << channel);
+		mRefusedAt[channel] = 0;
+	}
+
+	synchronized boolean isOwned(int channel) {
+
+		return (mOwned & (1 << channel)) != 0;
+	}
+
+	/**
+	 * @return the exception for a listen that found no channel
+	 */
+	synchronized IOException exhausted() {
+
+		return new IOException("no free RFCOMM channel in " + mFirst + ".."
+				+ mLast + ": " + Integer.bitCount(mOwned)
+				+ " in use by this process, the rest refused by the stack");
+	}
+}
@@ -16,15 +16,14 @@
 
 package backport.android.bluetooth.samples;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Arrays;
 
 import backport.android.bluetooth.BluetoothAdapter;
 import backport.android.bluetooth.BluetoothServerSocket;
 import backport.android.bluetooth.BluetoothSocket;
+import backport.android.bluetooth.BufferPool;
 import backport.android.bluetooth.R;
 import backport.android.bluetooth.R.layout;
 
@@ -127,60 +126,59 @@ public class OBEXActivity extends Activity {
 				Log.d(TAG, "got inputstream");
 
 				int read = -1;
-				byte[] bytes = new byte[2048];
-				ByteArrayOutputStream baos = new ByteArrayOutputStream(
-						bytes.length);
-				while ((read = inputStream.read(bytes)) != -1) {
+				BufferPool pool = BufferPool.getDefault();
+				byte[] bytes = pool.acquire(2048);
 
-					baos.write(bytes, 0, read);
-					byte[] req = baos.toByteArray();
+				try {
 
-					int op = req[0] & BIT_MASK;
+					while ((read = inputStream.read(bytes)) != -1) {
 
-					Log.d(TAG, "read:" + Arrays.toString(req));
-					Log.d(TAG, "op:" + Integer.toHexString(op));
+						int op = bytes[0] & BIT_MASK;
 
-					switch (op) {
-					case OBEX_CONNECT:
+						Log.d(TAG, "read:" + format(bytes, read));
+						Log.d(TAG, "op:" + Integer.toHexString(op));
 
-						outputStream.write(new byte[] {
-								(byte) OBEX_RESPONSE_OK, 0, 7, 16, 0, 4, 0 });
+						switch (op) {
+						case OBEX_CONNECT:
 
-						break;
+							outputStream.write(new byte[] {
+									(byte) OBEX_RESPONSE_OK, 0, 7, 16, 0, 4, 0 });
 
-					case OBEX_DISCONNECT:
+							break;
 
-						outputStream.write(new byte[] {
-								(byte) OBEX_RESPONSE_OK, 0, 3, 0 });
+						case OBEX_DISCONNECT:
 
-						break;
+							outputStream.write(new byte[] {
+									(byte) OBEX_RESPONSE_OK, 0, 3, 0 });
 
-					case OBEX_PUT:
+							break;
 
-						outputStream.write(new byte[] {
-								(byte) OBEX_RESPONSE_CONTINUE, 0, 3, 0 });
+						case OBEX_PUT:
 
-						break;
+							outputStream.write(new byte[] {
+									(byte) OBEX_RESPONSE_CONTINUE, 0, 3, 0 });
 
-					case OBEX_PUT_END:
+							break;
 
-						outputStream.write(new byte[] {
-								(byte) OBEX_RESPONSE_OK, 0, 3, 0 });
+						case OBEX_PUT_END:
 
-						break;
+							outputStream.write(new byte[] {
+									(byte) OBEX_RESPONSE_OK, 0, 3, 0 });
 
-					default:
+							break;
 
-						outputStream.write(new byte[] {
-								(byte) OBEX_RESPONSE_OK, 0, 3, 0 });
-					}
+						default:
 
-					Log.d(TAG, new String(baos.toByteArray(), "utf-8"));
+							outputStream.write(new byte[] {
+									(byte) OBEX_RESPONSE_OK, 0, 3, 0 });
+						}
 
-					baos = new ByteArrayOutputStream(bytes.length);
-				}
+						Log.d(TAG, new String(bytes, 0, read, "utf-8"));
+					}
+				} finally {
 
-				Log.d(TAG, new String(baos.toByteArray(), "utf-8"));
+					pool.release(bytes);
+				}
 			} catch (IOException e) {
 
 				e.printStackTrace();
@@ -294,4 +292,21 @@ public class OBEXActivity extends Activity {
 		}
 	}
 
+	private static String format(byte[] bytes, int length) {
+
+		StringBuilder b = new StringBuilder("[");
+
+		for (int i = 0; i < length; ++i) {
+
+			if (i > 0) {
+
+				b.append(", ");
+			}
+
+			b.append(bytes[i]);
+		}
+
+		return b.append(']').toString();
+	}
+
 }
\ No newline at end of file
@@ -15,6 +15,7 @@ import android.widget.ArrayAdapter;
 import backport.android.bluetooth.BluetoothAdapter;
 import backport.android.bluetooth.BluetoothServerSocket;
 import backport.android.bluetooth.BluetoothSocket;
+import backport.android.bluetooth.BufferPool;
 import backport.android.bluetooth.R;
 import backport.android.bluetooth.protocols.BluetoothProtocols;
 
@@ -136,42 +137,50 @@ public class ServerSocketActivity extends ListActivity {
 
 				InputStream inputStream = socket.getInputStream();
 				int read = -1;
-				final byte[] bytes = new byte[2048];
+				BufferPool pool = BufferPool.getDefault();
+				byte[] bytes = pool.acquire(2048);
 
-				for (; (read = inputStream.read(bytes)) > -1;) {
+				try {
 
-					final int count = read;
-					_handler.post(new Runnable() {
+					for (; (read = inputStream.read(bytes)) > -1;) {
 
-						public void run() {
+						// format here: the buffer is reused by the next read.
+						StringBuilder b = new StringBuilder();
+						for (int i = 0; i < read; ++i) {
 
-							StringBuilder b = new StringBuilder();
-							for (int i = 0; i < count; ++i) {
+							if (i > 0) {
 
-								if (i > 0) {
+								b.append(' ');
+							}
 
-									b.append(' ');
-								}
+							String s = Integer.toHexString(bytes[i] & 0xFF);
 
-								String s = Integer.toHexString(bytes[i] & 0xFF);
+							if (s.length() < 2) {
 
-								if (s.length() < 2) {
+								b.append('0');
+							}
 
-									b.append('0');
-								}
+							b.append(s);
+						}
 
-								b.append(s);
-							}
+						final String line = b.toString();
+						_handler.post(new Runnable() {
 
-							String s = b.toString();
-							lines.add(s);
+							public void run() {
 
-							ArrayAdapter<String> adapter = new ArrayAdapter<String>(
-									ServerSocketActivity.this,
-									android.R.layout.simple_list_item_1, lines);
-							setListAdapter(adapter);
-						}
-					});
+								lines.add(line);
+
+								ArrayAdapter<String> adapter = new ArrayAdapter<String>(
+										ServerSocketActivity.this,
+										android.R.layout.simple_list_item_1,
+										lines);
+								setListAdapter(adapter);
+							}
+						});
+					}
+				} finally {
+
+					pool.release(bytes);
 				}
 			}
 		} catch (IOException e) {
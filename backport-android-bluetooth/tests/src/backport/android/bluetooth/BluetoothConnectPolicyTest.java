@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import junit.framework.TestCase;
+
+public class BluetoothConnectPolicyTest extends TestCase {
+
+	public void testDefaultPolicyMakesOneAttempt() {
+
+		BluetoothConnectPolicy policy = new BluetoothConnectPolicy();
+
+		assertEquals(1, policy.getMaxAttempts());
+		assertEquals(0, policy.getAttemptTimeout());
+		assertEquals(0, policy.getTotalTimeout());
+	}
+
+	public void testBackoffGrowsExponentially() {
+
+		BluetoothConnectPolicy policy = new BluetoothConnectPolicy(5, 100,
+				10000, 0);
+		policy.setJitter(0f);
+
+		assertEquals(100, policy.getBackoff(1));
+		assertEquals(200, policy.getBackoff(2));
+		assertEquals(400, policy.getBackoff(3));
+		assertEquals(800, policy.getBackoff(4));
+	}
+
+	public void testBackoffIsCapped() {
+
+		BluetoothConnectPolicy policy = new BluetoothConnectPolicy(50, 100,
+				1000, 0);
+		policy.setJitter(0f);
+
+		assertEquals(1000, policy.getBackoff(5));
+		assertEquals(1000, policy.getBackoff(40));
+	}
+
+	public void testMultiplier() {
+
+		BluetoothConnectPolicy policy = new BluetoothConnectPolicy();
+		policy.setBackoff(50, 1000, 3f);
+		policy.setJitter(0f);
+
+		assertEquals(50, policy.getBackoff(1));
+		assertEquals(150, policy.getBackoff(2));
+		assertEquals(450, policy.getBackoff(3));
+		assertEquals(1000, policy.getBackoff(4));
+	}
+
+	public void testJitterStaysWithinThePause() {
+
+		BluetoothConnectPolicy policy = new BluetoothConnectPolicy(3, 1000,
+				1000, 0);
+		policy.setJitter(0.5f);
+
+		for (int i = 0; i < 1000; i++) {
+
+			long backoff = policy.getBackoff(1);
+			assertTrue("backoff " + backoff, backoff >= 500 && backoff <= 1000);
+		}
+	}
+
+	public void testInvalidArguments() {
+
+		BluetoothConnectPolicy policy = new BluetoothConnectPolicy();
+
+		try {
+
+			policy.setMaxAttempts(0);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+
+		try {
+
+			policy.setBackoff(100, 50, 2f);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+
+		try {
+
+			policy.setBackoff(100, 200, 0.5f);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+
+		try {
+
+			policy.setJitter(1.5f);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+
+		try {
+
+			policy.setTotalTimeout(-1);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class BluetoothMemoryBudgetTest extends TestCase {
+
+	private static final String ADDRESS = "00:00:00:00:00:00";
+
+	private BluetoothSocket mSocket;
+
+	@Override
+	protected void setUp() throws Exception {
+
+		mSocket = new BluetoothSocket(-1, false, false, ADDRESS, 1);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+
+		mSocket.close();
+	}
+
+	public void testChargeAndRelease() {
+
+		BluetoothMemoryBudget budget = budget(100,
+				BluetoothMemoryBudget.POLICY_DROP);
+
+		assertTrue(budget.tryCharge(60));
+		assertTrue(budget.tryCharge(40));
+		assertFalse(budget.tryCharge(1));
+		assertEquals(100, budget.getUsed());
+
+		budget.release(70);
+		budget.charge(50);
+
+		assertEquals(80, budget.getUsed());
+		assertEquals(100, budget.getPeak());
+	}
+
+	public void testOversizedChargeFitsAnEmptyBudget() {
+
+		BluetoothMemoryBudget budget = budget(100,
+				BluetoothMemoryBudget.POLICY_DROP);
+
+		assertTrue(budget.tryCharge(500));
+		assertFalse(budget.tryCharge(1));
+
+		budget.release(500);
+
+		assertTrue(budget.tryCharge(1));
+	}
+
+	public void testDropPolicy() throws IOException {
+
+		BluetoothMemoryBudget budget = budget(100,
+				BluetoothMemoryBudget.POLICY_DROP);
+		budget.charge(90);
+
+		assertFalse(budget.admit(20));
+		assertTrue(budget.admit(10));
+		assertEquals(1, budget.getExceededCount());
+		assertEquals(100, budget.getUsed());
+	}
+
+	public void testPauseWaitsForRelease() throws Exception {
+
+		final BluetoothMemoryBudget budget = budget(100,
+				BluetoothMemoryBudget.POLICY_PAUSE_READING);
+		budget.charge(90);
+
+		Thread releaser = new Thread() {
+
+			@Override
+			public void run() {
+
+				try {
+
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+				}
+
+				budget.release(50);
+			}
+		};
+
+		releaser.start();
+
+		assertTrue(budget.admit(20));
+		assertEquals(60, budget.getUsed());
+		releaser.join();
+	}
+
+	public void testPauseWithoutWaitingDrops() throws IOException {
+
+		BluetoothMemoryBudget budget = budget(100,
+				BluetoothMemoryBudget.POLICY_PAUSE_READING);
+		budget.charge(90);
+
+		assertFalse(budget.admit(20, false));
+	}
+
+	public void testCloseEndsPausedCharge() throws Exception {
+
+		BluetoothMemoryBudget budget = budget(100,
+				BluetoothMemoryBudget.POLICY_PAUSE_READING);
+		budget.charge(90);
+
+		Thread closer = new Thread() {
+
+			@Override
+			public void run() {
+
+				try {
+
+					Thread.sleep(100);
+					mSocket.close();
+				} catch (Exception e) {
+				}
+			}
+		};
+
+		closer.start();
+
+		try {
+
+			budget.admit(20);
+			fail();
+		} catch (IOException expected) {
+		}
+
+		closer.join();
+	}
+
+	public void testClosePolicyClosesTheSocket() {
+
+		BluetoothMemoryBudget budget = budget(100,
+				BluetoothMemoryBudget.POLICY_CLOSE);
+		budget.charge(90);
+
+		try {
+
+			budget.admit(20);
+			fail();
+		} catch (IOException expected) {
+		}
+
+		assertTrue(mSocket.isClosed());
+	}
+
+	public void testInvalidArguments() {
+
+		try {
+
+			budget(0, BluetoothMemoryBudget.POLICY_DROP);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+
+		try {
+
+			budget(100, 3);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	private BluetoothMemoryBudget budget(long limit, int policy) {
+
+		mSocket.setMemoryBudget(limit, policy);
+
+		return mSocket.getMemoryBudget();
+	}
+}
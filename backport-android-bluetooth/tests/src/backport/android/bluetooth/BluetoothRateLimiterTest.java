@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.io.InterruptedIOException;
+
+import junit.framework.TestCase;
+
+public class BluetoothRateLimiterTest extends TestCase {
+
+	public void testUnlimitedNeverWaits() throws InterruptedIOException {
+
+		BluetoothRateLimiter limiter = new BluetoothRateLimiter(0, 0);
+
+		limiter.acquire(1000000);
+		limiter.acquire(1000000);
+
+		assertEquals(2000000, limiter.getBytes());
+		assertEquals(0, limiter.getThrottledCount());
+	}
+
+	public void testBurstPassesAtOnce() throws InterruptedIOException {
+
+		BluetoothRateLimiter limiter = new BluetoothRateLimiter(1000, 500);
+
+		limiter.acquire(200);
+		limiter.acquire(300);
+
+		assertEquals(500, limiter.getBytes());
+		assertEquals(0, limiter.getThrottledCount());
+	}
+
+	public void testEmptyBucketWaits() throws InterruptedIOException {
+
+		BluetoothRateLimiter limiter = new BluetoothRateLimiter(1000, 100);
+		limiter.acquire(100);
+
+		long start = System.currentTimeMillis();
+		limiter.acquire(100);
+		long elapsed = System.currentTimeMillis() - start;
+
+		// 100 bytes at 1000 bytes per second.
+		assertTrue("waited " + elapsed + " ms", elapsed >= 80);
+		assertEquals(1, limiter.getThrottledCount());
+		assertTrue(limiter.getThrottledTime() >= 80);
+	}
+
+	public void testLargeWriteLeavesDebt() throws InterruptedIOException {
+
+		BluetoothRateLimiter limiter = new BluetoothRateLimiter(10000, 100);
+		limiter.acquire(1000);
+
+		long start = System.currentTimeMillis();
+		limiter.acquire(100);
+		long elapsed = System.currentTimeMillis() - start;
+
+		// 900 bytes of debt and 100 bytes more at 10000 bytes per second.
+		assertTrue("waited " + elapsed + " ms", elapsed >= 80);
+	}
+
+	public void testRemovingTheLimitWakesWriters() throws Exception {
+
+		final BluetoothRateLimiter limiter = new BluetoothRateLimiter(10, 10);
+		limiter.acquire(10);
+
+		Thread unlimiter = new Thread() {
+
+			@Override
+			public void run() {
+
+				try {
+
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+				}
+
+				limiter.setRate(0, 0);
+			}
+		};
+
+		unlimiter.start();
+
+		long start = System.currentTimeMillis();
+		limiter.acquire(10);
+		long elapsed = System.currentTimeMillis() - start;
+
+		// the bucket alone would have taken a second.
+		assertTrue("waited " + elapsed + " ms", elapsed < 900);
+		unlimiter.join();
+	}
+
+	public void testRate() {
+
+		BluetoothRateLimiter limiter = new BluetoothRateLimiter(1000, 0);
+
+		assertEquals(1000, limiter.getRate());
+		assertEquals(1, limiter.getBurst());
+
+		try {
+
+			limiter.setRate(-1, 100);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+
+		try {
+
+			limiter.setRate(1000, -1);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class BufferPoolTest extends TestCase {
+
+	private BufferPool mPool;
+
+	@Override
+	protected void setUp() throws Exception {
+
+		mPool = new BufferPool();
+	}
+
+	public void testSizeClasses() {
+
+		assertEquals(BufferPool.MIN_CLASS_SIZE, mPool.acquire(0).length);
+		assertEquals(BufferPool.MIN_CLASS_SIZE, mPool.acquire(1).length);
+		assertEquals(256, mPool.acquire(256).length);
+		assertEquals(512, mPool.acquire(257).length);
+		assertEquals(4096, mPool.acquire(3000).length);
+		assertEquals(BufferPool.MAX_CLASS_SIZE, mPool
+				.acquire(BufferPool.MAX_CLASS_SIZE).length);
+		assertEquals(BufferPool.MAX_CLASS_SIZE + 1, mPool
+				.acquire(BufferPool.MAX_CLASS_SIZE + 1).length);
+	}
+
+	public void testReleasedBufferIsReused() {
+
+		byte[] buffer = mPool.acquire(1000);
+		mPool.release(buffer);
+
+		assertSame(buffer, mPool.acquire(600));
+		assertEquals(1, mPool.getHits());
+		assertEquals(1, mPool.getMisses());
+	}
+
+	public void testOtherClassesAreNotShared() {
+
+		byte[] buffer = mPool.acquire(1000);
+		mPool.release(buffer);
+
+		assertNotSame(buffer, mPool.acquire(2000));
+		assertNotSame(buffer, mPool.acquire(100));
+	}
+
+	public void testForeignAndOversizedBuffersAreNotPooled() {
+
+		mPool.release(new byte[300]);
+		mPool.release(new byte[BufferPool.MAX_CLASS_SIZE * 2]);
+
+		assertEquals(512, mPool.acquire(300).length);
+		assertEquals(0, mPool.getHits());
+	}
+
+	public void testIdleBuffersAreCapped() {
+
+		mPool.setMaxBuffers(1024, 2);
+		byte[] first = mPool.acquire(1024);
+		byte[] second = mPool.acquire(1024);
+		byte[] third = mPool.acquire(1024);
+
+		mPool.release(first);
+		mPool.release(second);
+		mPool.release(third);
+
+		assertEquals(2, mPool.getMaxBuffers(1024));
+		assertEquals(1, mPool.getDiscards());
+	}
+
+	public void testLoweringTheCapDropsIdleBuffers() {
+
+		byte[] first = mPool.acquire(1024);
+		byte[] second = mPool.acquire(1024);
+		mPool.release(first);
+		mPool.release(second);
+
+		mPool.setMaxBuffers(1024, 1);
+
+		assertSame(first, mPool.acquire(1024));
+		assertNotSame(second, mPool.acquire(1024));
+	}
+
+	public void testDoubleReleaseIsIgnored() {
+
+		byte[] buffer = mPool.acquire(256);
+		mPool.release(buffer);
+		mPool.release(buffer);
+
+		assertSame(buffer, mPool.acquire(256));
+		assertNotSame(buffer, mPool.acquire(256));
+	}
+
+	public void testDirectBuffers() {
+
+		ByteBuffer buffer = mPool.acquireDirect(700);
+
+		assertTrue(buffer.isDirect());
+		assertEquals(1024, buffer.capacity());
+
+		buffer.position(10);
+		mPool.releaseDirect(buffer);
+		ByteBuffer again = mPool.acquireDirect(1024);
+
+		assertSame(buffer, again);
+		assertEquals(0, again.position());
+		assertEquals(1024, again.limit());
+	}
+
+	public void testDebugTracksOutstandingBuffers() {
+
+		assertEquals(-1, mPool.getOutstandingCount());
+
+		mPool.setDebug(true);
+		byte[] buffer = mPool.acquire(100);
+		ByteBuffer direct = mPool.acquireDirect(100);
+
+		assertEquals(2, mPool.getOutstandingCount());
+
+		mPool.release(buffer);
+		mPool.releaseDirect(direct);
+
+		assertEquals(0, mPool.getOutstandingCount());
+	}
+
+	public void testInvalidMaxBuffers() {
+
+		try {
+
+			mPool.setMaxBuffers(BufferPool.MAX_CLASS_SIZE + 1, 4);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+
+		try {
+
+			mPool.setMaxBuffers(1024, -1);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+}
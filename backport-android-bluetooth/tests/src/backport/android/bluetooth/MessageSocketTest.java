@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class MessageSocketTest extends TestCase {
+
+	private static final String ADDRESS = "00:00:00:00:00:00";
+
+	private BluetoothSocket mSocket;
+
+	private final List<byte[]> mMessages = new ArrayList<byte[]>();
+
+	private final MessageSocket.Handler mHandler = new MessageSocket.Handler() {
+
+		public void onMessage(MessageSocket socket, byte[] buffer,
+				int offset, int length) {
+
+			byte[] message = new byte[length];
+			System.arraycopy(buffer, offset, message, 0, length);
+			mMessages.add(message);
+		}
+	};
+
+	@Override
+	protected void setUp() throws Exception {
+
+		mSocket = new BluetoothSocket(-1, false, false, ADDRESS, 1);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+
+		mSocket.close();
+	}
+
+	public void testWriteVarint() {
+
+		assertVarint(0, 0x00);
+		assertVarint(127, 0x7f);
+		assertVarint(128, 0x80, 0x01);
+		assertVarint(300, 0xac, 0x02);
+		assertVarint(16384, 0x80, 0x80, 0x01);
+		assertVarint(Integer.MAX_VALUE, 0xff, 0xff, 0xff, 0xff, 0x07);
+		assertVarint(-1, 0xff, 0xff, 0xff, 0xff, 0x0f);
+	}
+
+	public void testDecodeWholeMessages() throws IOException {
+
+		MessageSocket socket = new MessageSocket(mSocket, 1024);
+		byte[] first = payload(3);
+		byte[] second = payload(200);
+		byte[] data = frames(first, second, new byte[0]);
+
+		socket.decode(data, 0, data.length, mHandler);
+
+		assertEquals(3, mMessages.size());
+		assertTrue(Arrays.equals(first, mMessages.get(0)));
+		assertTrue(Arrays.equals(second, mMessages.get(1)));
+		assertEquals(0, mMessages.get(2).length);
+	}
+
+	public void testDecodeAcrossReads() throws IOException {
+
+		MessageSocket socket = new MessageSocket(mSocket, 1024);
+		byte[] first = payload(300);
+		byte[] second = payload(5);
+		byte[] data = frames(first, second);
+
+		for (int i = 0; i < data.length; i++) {
+
+			socket.decode(data, i, 1, mHandler);
+		}
+
+		assertEquals(2, mMessages.size());
+		assertTrue(Arrays.equals(first, mMessages.get(0)));
+		assertTrue(Arrays.equals(second, mMessages.get(1)));
+	}
+
+	public void testAssemblyBufferGoesBackToThePool() throws IOException {
+
+		BufferPool pool = BufferPool.getDefault();
+		pool.setDebug(true);
+
+		try {
+
+			MessageSocket socket = new MessageSocket(mSocket, 1024);
+			byte[] data = frames(payload(600));
+
+			socket.decode(data, 0, 100, mHandler);
+			assertEquals(1, pool.getOutstandingCount());
+
+			socket.decode(data, 100, data.length - 100, mHandler);
+			assertEquals(1, mMessages.size());
+			assertEquals(0, pool.getOutstandingCount());
+		} finally {
+
+			pool.setDebug(false);
+		}
+	}
+
+	public void testRejectsFrameOverMaximum() throws IOException {
+
+		MessageSocket socket = new MessageSocket(mSocket, 16);
+		byte[] data = frames(payload(17));
+
+		try {
+
+			socket.decode(data, 0, data.length, mHandler);
+			fail();
+		} catch (IOException expected) {
+		}
+
+		assertEquals(0, mMessages.size());
+	}
+
+	public void testRejectsLengthOverflowingAnInt() {
+
+		MessageSocket socket = new MessageSocket(mSocket, Integer.MAX_VALUE);
+		byte[] data = { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+				0x10, 0x00 };
+
+		try {
+
+			socket.decode(data, 0, data.length, mHandler);
+			fail();
+		} catch (IOException expected) {
+
+			assertEquals("malformed length", expected.getMessage());
+		}
+	}
+
+	public void testRejectsNegativeLength() {
+
+		MessageSocket socket = new MessageSocket(mSocket, Integer.MAX_VALUE);
+		byte[] data = { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+				0x0f };
+
+		try {
+
+			socket.decode(data, 0, data.length, mHandler);
+			fail();
+		} catch (IOException expected) {
+
+			assertEquals("invalid frame length -1", expected.getMessage());
+		}
+	}
+
+	public void testDropsMessagesOverBudget() throws IOException {
+
+		mSocket.setMemoryBudget(64, BluetoothMemoryBudget.POLICY_DROP);
+		BluetoothMemoryBudget budget = mSocket.getMemoryBudget();
+		MessageSocket socket = new MessageSocket(mSocket, 1024);
+		byte[] dropped = frames(payload(100));
+		byte[] kept = frames(payload(20));
+
+		budget.charge(32);
+		socket.decode(dropped, 0, 10, mHandler);
+		socket.decode(dropped, 10, dropped.length - 10, mHandler);
+		assertEquals(0, mMessages.size());
+		assertEquals(1, budget.getExceededCount());
+
+		socket.decode(kept, 0, 10, mHandler);
+		socket.decode(kept, 10, kept.length - 10, mHandler);
+		assertEquals(1, mMessages.size());
+		assertEquals(32, budget.getUsed());
+	}
+
+	private static void assertVarint(int value, int... expected) {
+
+		byte[] buffer = new byte[MessageSocket.MAX_HEADER_SIZE];
+		int length = MessageSocket.writeVarint(value, buffer, 0);
+
+		assertEquals("length of " + value, expected.length, length);
+
+		for (int i = 0; i < length; i++) {
+
+			assertEquals("byte " + i + " of " + value, expected[i],
+					buffer[i] & 0xff);
+		}
+	}
+
+	private static byte[] frames(byte[]... payloads) {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] header = new byte[MessageSocket.MAX_HEADER_SIZE];
+
+		for (byte[] payload : payloads) {
+
+			out.write(header, 0, MessageSocket.writeVarint(payload.length,
+					header, 0));
+			out.write(payload, 0, payload.length);
+		}
+
+		return out.toByteArray();
+	}
+
+	private static byte[] payload(int length) {
+
+		byte[] payload = new byte[length];
+
+		for (int i = 0; i < length; i++) {
+
+			payload[i] = (byte) (i * 31 + length);
+		}
+
+		return payload;
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2009, backport-android-bluetooth - http://code.google.com/p/backport-android-bluetooth/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package backport.android.bluetooth;
+
+import junit.framework.TestCase;
+
+public class RfcommChannelAllocatorTest extends TestCase {
+
+	public void testAscendingOrder() {
+
+		RfcommChannelAllocator channels = new RfcommChannelAllocator(1, 30);
+
+		assertEquals(1, channels.acquire(0));
+		assertEquals(2, channels.acquire(0));
+		assertTrue(channels.isOwned(1));
+		assertTrue(channels.isOwned(2));
+		assertFalse(channels.isOwned(3));
+	}
+
+	public void testReservedAndTriedChannelsAreSkipped() {
+
+		RfcommChannelAllocator channels = new RfcommChannelAllocator(1, 30,
+				1, 2);
+
+		assertEquals(4, channels.acquire(1 << 3));
+	}
+
+	public void testReleasedChannelIsReused() {
+
+		RfcommChannelAllocator channels = new RfcommChannelAllocator(1, 30);
+		channels.acquire(0);
+		channels.acquire(0);
+
+		channels.release(1);
+
+		assertFalse(channels.isOwned(1));
+		assertEquals(1, channels.acquire(0));
+	}
+
+	public void testRefusedChannelIsTriedLast() {
+
+		RfcommChannelAllocator channels = new RfcommChannelAllocator(1, 3);
+
+		assertEquals(1, channels.acquire(0));
+		channels.refuse(1);
+
+		assertFalse(channels.isOwned(1));
+		assertEquals(2, channels.acquire(0));
+		assertEquals(3, channels.acquire(0));
+		assertEquals(1, channels.acquire(0));
+		assertEquals(-1, channels.acquire(0));
+	}
+
+	public void testReleaseForgetsRefusal() {
+
+		RfcommChannelAllocator channels = new RfcommChannelAllocator(1, 3);
+		channels.acquire(0);
+		channels.refuse(1);
+		channels.acquire(0);
+
+		channels.release(2);
+		channels.release(1);
+
+		assertEquals(1, channels.acquire(0));
+	}
+
+	public void testExhausted() {
+
+		RfcommChannelAllocator channels = new RfcommChannelAllocator(5, 6);
+
+		assertEquals(5, channels.acquire(0));
+		assertEquals(-1, channels.acquire(1 << 6));
+
+		String message = channels.exhausted().getMessage();
+		assertTrue(message, message.indexOf("5..6") != -1);
+	}
+
+	public void testInvalidRange() {
+
+		int[][] ranges = { { 0, 30 }, { 1, 31 }, { 10, 9 } };
+
+		for (int[] range : ranges) {
+
+			try {
+
+				new RfcommChannelAllocator(range[0], range[1]);
+				fail(range[0] + ".." + range[1]);
+			} catch (IllegalArgumentException expected) {
+			}
+		}
+	}
+}
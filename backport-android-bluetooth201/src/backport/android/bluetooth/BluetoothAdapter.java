@@ -5,10 +5,7 @@ import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.UUID;
 
-import android.bluetooth.Database;
 import android.bluetooth.IBluetoothDevice;
-import android.os.Handler;
-import android.os.Message;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -245,27 +242,19 @@ public class BluetoothAdapter {
 
 	private static BluetoothAdapter sAdapter;
 
+	/**
+	 * channels for listenUsingRfcommWithServiceRecord(); HFAG, HSAG, OPUSH and
+	 * PBAP are reserved
+	 */
+	private static final RfcommChannelAllocator sChannels = new RfcommChannelAllocator(
+			1, BluetoothSocket.MAX_RFCOMM_CHANNEL, 10, 11, 12, 19);
+
 	private final IBluetoothDevice mService;
 
 	private final IBluetoothDeviceDelegate mDelegate;
 
 	private final boolean mStandardImplementation;
 
-	private Handler mHandler = new Handler() {
-		public void handleMessage(Message msg) {
-			/* handle socket closing */
-			int handle = msg.what;
-			try {
-				Log.d(TAG, "Removing service record "
-						+ Integer.toHexString(handle));
-				Database.getInstance().removeServiceRecord(handle);
-				// mService.removeServiceRecord(handle);
-			} catch (Exception e) {
-				Log.e(TAG, "", e);
-			}
-		}
-	};
-
 	public boolean cancelDiscovery() {
 
 		try {
@@ -509,40 +498,47 @@ public class BluetoothAdapter {
 		BluetoothServerSocket socket;
 		int channel;
 		int errno;
+		int tried = 0;
 		while (true) {
-			// channel = picker.nextChannel();
+			channel = sChannels.acquire(tried);
 
-			// if (channel == -1) {
-			// throw new IOException("No available channels");
-			// }
+			if (channel == -1) {
+				throw sChannels.exhausted();
+			}
 
+			tried |= 1 << channel;
 			socket = new BluetoothServerSocket(uuid);
 			// errno = socket.mSocket.bindListen();
 
-			// サービスレコードの登録ができないため、UUIDからチャンネルを決定します.
+			// サービスレコードの登録ができないため、SDPに失敗したクライアントは
+			// チャンネル1に接続する. sChannelsはチャンネル1から順に割り当てる.
 			// channel = UUIDHelper.toUUID16(uuid) &
 			// BluetoothSocket.DEFAULT_CHANNEL;
-			channel = 1;
-
-			// channel = BluetoothSocket.DEFAULT_CHANNEL;
 
-			boolean bind = socket.mSocket.mRfcommSocket.bind(null, channel);
+			boolean bind;
+			try {
+				bind = socket.mSocket.mRfcommSocket.bind(null, channel);
+			} catch (IOException e) {
+				bind = false;
+			}
 			errno = bind ? 0 : BluetoothSocket.EADDRINUSE;
 			// EADDRINUSE
 
 			if (errno == 0) {
 
+				socket.setChannel(sChannels, channel);
 				break; // success
 			} else if (errno == BluetoothSocket.EADDRINUSE) {
 
 				Log.d(TAG, "RFCOMM channel " + channel + " in use");
-				// Log.d(TAG, "any RFCOMM channel unavailable");
+				sChannels.refuse(channel);
 				try {
 					socket.close();
 				} catch (IOException e) {
 				}
-				break; // try another channel
+				continue; // try another channel
 			} else {
+				sChannels.refuse(channel);
 				try {
 					socket.close();
 				} catch (IOException e) {
@@ -555,7 +551,19 @@ public class BluetoothAdapter {
 
 		}
 
-		socket.mSocket.mRfcommSocket.listen(-1);
+		try {
+			socket.mSocket.mRfcommSocket.listen(-1);
+		} catch (IOException e) {
+			try {
+				socket.close();
+			} catch (IOException e2) {
+			}
+			throw e;
+		}
+
+		// レコードの登録はServiceRecordRegistryが行う. システムバスに
+		// 接続できない端末では失敗するが、クライアントはチャンネル1を試すので
+		// ログを出して続ける.
 		//
 		// ERROR/bluetooth_Database.cpp(505): Could not get onto the system bus!
 		// ERROR/libdbus(505): arguments to
@@ -564,27 +572,8 @@ public class BluetoothAdapter {
 		// external/dbus/dbus/dbus-connection.c line 2830.
 		// ERROR/libdbus(505): This is normally a bug in some application using
 		// the D-Bus library.
-		//
-		// int handle = -1;
-		//
-		// try {
-		//
-		// Database database = Database.getInstance();
-		// handle = database.advertiseRfcommService(
-		// socket.mSocket.mRfcommSocket, name, uuid);
-		// } catch (IOException e) {
-		// Log.e(TAG, "", e);
-		// }
-		//
-		// if (handle == -1) {
-		// try {
-		// socket.close();
-		// } catch (IOException e) {
-		// }
-		// throw new IOException("Not able to register SDP record for " + name);
-		// }
-		//
-		// socket.setCloseHandler(mHandler, handle);
+		socket.setServiceRecord(ServiceRecordRegistry.getInstance().advertise(
+				name, uuid, channel));
 
 		// channel = socket.mSocket.mRfcommSocket.getPort();
 		Log.d(TAG, "listening on RFCOMM channel " + channel);
@@ -2,15 +2,45 @@ package backport.android.bluetooth;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.LinkedList;
 import java.util.UUID;
 
-import android.os.Handler;
+import android.util.Log;
 
 public class BluetoothServerSocket implements Closeable {
 
+	private static final String TAG = "BluetoothServerSocket";
+
+	/*
+	 * なぜか-1(infinity)を指定すると、closeできないので、acceptorスレッドが
+	 * この長さのacceptを繰り返す. 接続が来ればすぐに返る.
+	 */
+	static final int ACCEPT_SLICE_MS = 1000;
+
 	final BluetoothSocket mSocket;
-	private Handler mHandler;
-	private int mMessage;
+	/** withdrawn on close */
+	private ServiceRecordRegistry.Entry mServiceRecord;
+
+	/** guards the fields below */
+	private final Object mAcceptLock = new Object();
+	private Thread mAcceptor;
+	/** accepted connections no caller has taken yet, oldest first */
+	private final LinkedList<Accepted> mBacklog = new LinkedList<Accepted>();
+	private int mBacklogLimit = 1;
+	/** accept without waiting for callers, see startAccepting() */
+	private boolean mMultiAccept;
+	private IOException mAcceptError;
+	/** callers blocked in accept() */
+	private int mWaiters;
+	private boolean mClosed;
+
+	private long mAcceptingSince;
+	private long mAcceptedCount;
+	/** connections accepted since mAcceptingSince */
+	private long mMultiAcceptedCount;
+	private final LatencyHistogram mQueueWait = new LatencyHistogram();
 
 	BluetoothServerSocket(UUID uuid) throws IOException {
 		mSocket = new BluetoothSocket(null, uuid);
@@ -21,24 +51,297 @@ public class BluetoothServerSocket implements Closeable {
 		return accept(-1);
 	}
 
+	/**
+	 * Wait for a connection. A dedicated acceptor thread runs the native
+	 * accept, so this returns as soon as a connection arrives and throws as
+	 * soon as close() is called.
+	 *
+	 * @param timeout
+	 *            milliseconds to wait, or -1 for no limit
+	 */
 	public BluetoothSocket accept(int timeout) throws IOException {
 
-		return mSocket.accept(timeout);
+		BluetoothSocket socket = poll(timeout);
+
+		if (socket == null)
+			throw new SocketTimeoutException("accept timed out");
+
+		return socket;
+	}
+
+	/**
+	 * Keep accepting connections whether or not a caller is waiting, for
+	 * servers that expect several clients at once. Up to backlog connections
+	 * are held for take() or poll(); while the backlog is full no more are
+	 * accepted.
+	 */
+	public void startAccepting(int backlog) throws IOException {
+
+		if (backlog < 1)
+			throw new IllegalArgumentException("backlog");
+
+		synchronized (mAcceptLock) {
+			if (mClosed)
+				throw new IOException("socket closed");
+
+			mBacklogLimit = backlog;
+
+			if (!mMultiAccept) {
+				mMultiAccept = true;
+				mAcceptingSince = System.currentTimeMillis();
+			}
+
+			startAcceptor();
+			mAcceptLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Take the oldest accepted connection, waiting until there is one.
+	 */
+	public BluetoothSocket take() throws IOException {
+
+		return accept(-1);
+	}
+
+	/**
+	 * Take the oldest accepted connection, waiting at most timeout
+	 * milliseconds.
+	 *
+	 * @return the connection, or null on timeout
+	 */
+	public BluetoothSocket poll(int timeout) throws IOException {
+
+		long until = (timeout > -1) ? System.currentTimeMillis() + timeout
+				: Long.MAX_VALUE;
+
+		synchronized (mAcceptLock) {
+			mWaiters++;
+			try {
+				for (;;) {
+					if (mClosed)
+						throw new IOException("socket closed");
+
+					if (!mBacklog.isEmpty())
+						return take(mBacklog.removeFirst());
+
+					if (mAcceptError != null) {
+						IOException e = mAcceptError;
+						mAcceptError = null;
+						throw e;
+					}
+
+					startAcceptor();
+
+					long remaining = until - System.currentTimeMillis();
+
+					if (remaining <= 0)
+						return null;
+
+					try {
+						if (until == Long.MAX_VALUE) {
+							mAcceptLock.wait();
+						} else {
+							mAcceptLock.wait(remaining);
+						}
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException("accept interrupted");
+					}
+				}
+			} finally {
+				mWaiters--;
+			}
+		}
+	}
+
+	/**
+	 * @return connections accepted since this socket was opened
+	 */
+	public long getAcceptedCount() {
+
+		synchronized (mAcceptLock) {
+			return mAcceptedCount;
+		}
+	}
+
+	/**
+	 * @return connections accepted per minute since startAccepting(), or 0
+	 *         in single accept mode
+	 */
+	public float getAcceptRate() {
+
+		synchronized (mAcceptLock) {
+			if (!mMultiAccept)
+				return 0;
+
+			long elapsed = Math.max(1, System.currentTimeMillis()
+					- mAcceptingSince);
+
+			return mMultiAcceptedCount * 60000f / elapsed;
+		}
+	}
+
+	/**
+	 * @return connections waiting to be taken
+	 */
+	public int getBacklogSize() {
+
+		synchronized (mAcceptLock) {
+			return mBacklog.size();
+		}
+	}
+
+	/**
+	 * @return time from accept until a caller took the connection
+	 */
+	public LatencyHistogram getQueueWait() {
+
+		return mQueueWait.snapshot();
 	}
 
 	public void close() throws IOException {
 
+		LinkedList<Accepted> unclaimed;
+
+		synchronized (mAcceptLock) {
+			if (mClosed)
+				return;
+			mClosed = true;
+			unclaimed = new LinkedList<Accepted>(mBacklog);
+			mBacklog.clear();
+			mAcceptLock.notifyAll();
+		}
+
+		for (Accepted accepted : unclaimed) {
+			try {
+				accepted.mSocket.close();
+			} catch (IOException e) {
+				Log.e(TAG, "", e);
+			}
+		}
+
 		synchronized (this) {
-			if (mHandler != null) {
-				mHandler.obtainMessage(mMessage).sendToTarget();
+			if (mServiceRecord != null) {
+				ServiceRecordRegistry.getInstance().withdraw(mServiceRecord);
+				mServiceRecord = null;
 			}
 		}
+
+		// returns at once; an accept in progress destroys the listening
+		// socket, and so frees its channel, when it leaves the native call.
 		mSocket.close();
 	}
 
-	synchronized void setCloseHandler(Handler handler, int message) {
-		mHandler = handler;
-		mMessage = message;
+	/** close() withdraws the record */
+	synchronized void setServiceRecord(ServiceRecordRegistry.Entry record) {
+		boolean closed;
+
+		synchronized (mAcceptLock) {
+			closed = mClosed;
+		}
+
+		if (closed) {
+			ServiceRecordRegistry.getInstance().withdraw(record);
+		} else {
+			mServiceRecord = record;
+		}
+	}
+
+	/** the channel goes back to allocator once the listener is destroyed */
+	void setChannel(RfcommChannelAllocator allocator, int channel) {
+		mSocket.setChannel(allocator, channel);
+	}
+
+	/** called with mAcceptLock held */
+	private BluetoothSocket take(Accepted accepted) {
+		mQueueWait.record(System.nanoTime() - accepted.mTime);
+		mAcceptLock.notifyAll();
+
+		return accepted.mSocket;
+	}
+
+	/** called with mAcceptLock held */
+	private void startAcceptor() {
+		if (mAcceptor != null)
+			return;
+
+		mAcceptor = new Thread(new Runnable() {
+			public void run() {
+				acceptLoop();
+			}
+		}, TAG + "-acceptor");
+		mAcceptor.setDaemon(true);
+		mAcceptor.start();
 	}
 
+	/**
+	 * Accept while someone waits for a connection, or all the time in multi
+	 * accept mode, as long as the backlog has room. The acceptee is reused
+	 * until a connection lands on it.
+	 */
+	private void acceptLoop() {
+
+		BluetoothSocket acceptee = null;
+
+		try {
+			for (;;) {
+				synchronized (mAcceptLock) {
+					while (!mClosed && (mBacklog.size() >= mBacklogLimit
+							|| (!mMultiAccept && mWaiters == 0))) {
+						mAcceptLock.wait();
+					}
+					if (mClosed)
+						break;
+				}
+
+				if (acceptee == null) {
+					acceptee = new BluetoothSocket(null, null);
+				}
+
+				if (mSocket.accept(acceptee, ACCEPT_SLICE_MS)) {
+					synchronized (mAcceptLock) {
+						if (!mClosed) {
+							mBacklog.addLast(new Accepted(acceptee));
+							mAcceptedCount++;
+							if (mMultiAccept)
+								mMultiAcceptedCount++;
+							acceptee = null;
+							mAcceptLock.notifyAll();
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			synchronized (mAcceptLock) {
+				if (!mClosed) {
+					mAcceptError = e;
+				}
+			}
+		} catch (InterruptedException e) {
+			// daemon thread; nobody interrupts it.
+		} finally {
+			synchronized (mAcceptLock) {
+				mAcceptor = null;
+				mAcceptLock.notifyAll();
+			}
+
+			if (acceptee != null) {
+				try {
+					acceptee.close();
+				} catch (IOException e) {
+					Log.e(TAG, "", e);
+				}
+			}
+		}
+	}
+
+	private static final class Accepted {
+
+		final BluetoothSocket mSocket;
+		final long mTime = System.nanoTime();
+
+		Accepted(BluetoothSocket socket) {
+			mSocket = socket;
+		}
+	}
 }
@@ -6,7 +6,6 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.util.UUID;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import android.bluetooth.IBluetoothDevice;
 import android.bluetooth.IBluetoothDeviceCallback;
@@ -23,6 +22,9 @@ public class BluetoothSocket implements Closeable {
 
 	static final int MAX_RFCOMM_CHANNEL = 30;
 
+	/** time a blocked connect waits before checking for close */
+	private static final int CONNECT_SLICE_MS = 100;
+
 	private static final String TAG = "BluetoothSocket";
 
 	private static final Field M_ADDRESS_FIELD;
@@ -60,8 +62,18 @@ public class BluetoothSocket implements Closeable {
 	/** prevents all native calls after destroyNative() */
 	private boolean mClosed;
 
-	/** protects mClosed */
-	private final ReentrantReadWriteLock mLock;
+	/** native calls in progress; the last one out destroys a closed socket */
+	private int mInFlight;
+
+	private boolean mDestroyed;
+
+	/** listening channel, given back to mAllocator once destroyed */
+	private RfcommChannelAllocator mAllocator;
+
+	private int mChannel;
+
+	/** protects mClosed, mInFlight, mDestroyed and mAllocator */
+	private final Object mLock;
 
 	public BluetoothSocket(BluetoothDevice remDev, UUID uuid) {
 
@@ -88,64 +100,81 @@ public class BluetoothSocket implements Closeable {
 		}
 
 		mClosed = false;
-		mLock = new ReentrantReadWriteLock();
+		mLock = new Object();
 	}
 
+	/**
+	 * Close the socket without waiting for blocked calls. SDP is cancelled, a
+	 * pending connect interrupted and the socket shut down, so the calls
+	 * return promptly; the socket is destroyed by the last of them to leave.
+	 */
 	public void close() throws IOException {
 
-		// abort blocking operations on the socket
-		mLock.readLock().lock();
-		try {
+		synchronized (mLock) {
 			if (mClosed)
 				return;
-			if (mSdp != null) {
-				mSdp.cancel();
-			}
+			mClosed = true;
+		}
 
-			try {
-				mRfcommSocket.shutdownInput();
-			} catch (IOException e) {
-			}
+		// abort blocking operations on the socket
+		if (mSdp != null) {
+			mSdp.cancel();
+		}
 
-			try {
-				mRfcommSocket.shutdownOutput();
-			} catch (IOException e) {
-			}
+		try {
+			mRfcommSocket.interruptAsyncConnect();
+		} catch (IOException e) {
+		}
 
-			try {
-				mRfcommSocket.shutdown();
-			} catch (IOException e) {
-			}
+		try {
+			mRfcommSocket.shutdownInput();
+		} catch (IOException e) {
+		}
 
-		} finally {
-			mLock.readLock().unlock();
+		try {
+			mRfcommSocket.shutdownOutput();
+		} catch (IOException e) {
 		}
 
-		// all native calls are guaranteed to immediately return after
-		// abortNative(), so this lock should immediatley acquire
-		mLock.writeLock().lock();
 		try {
-			mClosed = true;
-			mRfcommSocket.destroy();
-		} finally {
-			mLock.writeLock().unlock();
+			mRfcommSocket.shutdown();
+		} catch (IOException e) {
+		}
+
+		synchronized (mLock) {
+			if (mInFlight == 0) {
+				destroy();
+			}
 		}
 	}
 
 	public void connect() throws IOException {
 
-		mLock.readLock().lock();
+		enter();
 		try {
-			if (mClosed)
-				throw new IOException("socket closed");
-
 			if (mSdp != null) {
 				mPort = mSdp.doSdp(); // blocks
 			}
 
-			mRfcommSocket.connect(mRemoteDevice.getAddress(), mPort); // blocks
+			// RfcommSocket.connect() holds the socket lock until the remote
+			// device answers, so close() could not shut it down. Connect
+			// asynchronously and wait in slices instead.
+			if (!mRfcommSocket.connectAsync(mRemoteDevice.getAddress(), mPort))
+				throw new IOException("Unable to start connect");
+
+			for (;;) {
+				if (isClosed())
+					throw new IOException("socket closed");
+
+				int result = mRfcommSocket.waitForAsyncConnect(CONNECT_SLICE_MS);
+
+				if (result > 0)
+					break;
+				if (result < 0)
+					throw new IOException("Connection refused");
+			}
 		} finally {
-			mLock.readLock().unlock();
+			exit();
 		}
 	}
 
@@ -170,14 +199,15 @@ public class BluetoothSocket implements Closeable {
 
 	int bindListen() {
 
-		mLock.readLock().lock();
-
 		try {
 
-			if (mClosed) {
+			enter();
+		} catch (IOException e) {
 
-				return EBADFD;
-			}
+			return EBADFD;
+		}
+
+		try {
 
 			try {
 
@@ -197,52 +227,86 @@ public class BluetoothSocket implements Closeable {
 
 			return 0;
 		} finally {
-			mLock.readLock().unlock();
+			exit();
 		}
 	}
 
-	BluetoothSocket accept(int timeout) throws IOException {
-		mLock.readLock().lock();
+	/**
+	 * Wait at most timeout for a connection and land it on acceptee, which
+	 * can be passed again until this returns true.
+	 */
+	boolean accept(BluetoothSocket acceptee, int timeout) throws IOException {
+		enter();
 		try {
-			if (mClosed) {
-				throw new IOException("socket closed");
-			}
-		} finally {
-			mLock.readLock().unlock();
-		}
+			RfcommSocket tmp = acceptee.mRfcommSocket;
 
-		BluetoothSocket socket = new BluetoothSocket(null, null);
-		RfcommSocket tmp = socket.mRfcommSocket;
+			mRfcommSocket.accept(tmp, timeout);
 
-		// なぜか-1(infinity)を指定すると、closeできないのでループでinfinityな感じにする.
-		int tmpTimeout = (timeout > -1) ? timeout : 500;
+			if (!tmp.isConnected()) {
+				return false;
+			}
 
-		for (;;) {
-			mRfcommSocket.accept(tmp, tmpTimeout);
+			String addr = obtainAddress(tmp);
+			acceptee.mRemoteDevice = new BluetoothDevice(addr);
 
-			if (timeout > -1) {
-				break;
-			}
+			return true;
+		} finally {
+			exit();
+		}
+	}
 
-			mLock.readLock().lock();
-			try {
-				if (mClosed) {
-					return null;
-				}
+	private boolean isClosed() {
+		synchronized (mLock) {
+			return mClosed;
+		}
+	}
 
-			} finally {
-				mLock.readLock().unlock();
+	/**
+	 * Register a native call, or fail if the socket is closed.
+	 */
+	private void enter() throws IOException {
+		synchronized (mLock) {
+			if (mClosed)
+				throw new IOException("socket closed");
+			mInFlight++;
+		}
+	}
+
+	private void exit() {
+		synchronized (mLock) {
+			mInFlight--;
+			if (mClosed && mInFlight == 0) {
+				destroy();
 			}
+		}
+	}
 
-			if (tmp.isConnected()) {
-				break;
+	/**
+	 * Give channel back to allocator when this listening socket is destroyed,
+	 * not before: an accept in progress holds the channel until it returns.
+	 */
+	void setChannel(RfcommChannelAllocator allocator, int channel) {
+		synchronized (mLock) {
+			if (mDestroyed) {
+				allocator.release(channel);
+			} else {
+				mAllocator = allocator;
+				mChannel = channel;
 			}
 		}
+	}
 
-		String addr = obtainAddress(tmp);
-		socket.mRemoteDevice = new BluetoothDevice(addr);
+	/** called with mLock held */
+	private void destroy() {
+		if (!mDestroyed) {
+			mDestroyed = true;
+			mRfcommSocket.destroy();
 
-		return socket;
+			if (mAllocator != null) {
+				mAllocator.release(mChannel);
+				mAllocator = null;
+			}
+		}
 	}
 
 	/**
@@ -255,6 +319,8 @@ public class BluetoothSocket implements Closeable {
 		private final BluetoothDevice mDevice;
 		private int mChannel;
 		private boolean mCanceled;
+		/** a result, successful or not, or a cancel has arrived */
+		private boolean mResultReceived;
 
 		public SdpHelper(BluetoothDevice device, UUID uuid) {
 
@@ -272,6 +338,7 @@ public class BluetoothSocket implements Closeable {
 			if (mCanceled)
 				throw new IOException("Service discovery canceled");
 			mChannel = -1;
+			mResultReceived = false;
 
 			boolean inProgress = false;
 			int uuid16 = UUIDHelper.toUUID16(mUuid);
@@ -293,7 +360,13 @@ public class BluetoothSocket implements Closeable {
 				 * 12 second timeout as a precaution - onRfcommChannelFound
 				 * should always occur before the timeout
 				 */
-				wait(12000); // block
+				long until = System.currentTimeMillis() + 12000;
+				long remaining = 12000;
+
+				while (!mResultReceived && remaining > 0) {
+					wait(remaining); // block
+					remaining = until - System.currentTimeMillis();
+				}
 
 			} catch (InterruptedException e) {
 			}
@@ -319,6 +392,7 @@ public class BluetoothSocket implements Closeable {
 			if (!mCanceled) {
 				mCanceled = true;
 				mChannel = -1;
+				mResultReceived = true;
 				notifyAll(); // unblock
 			}
 		}
@@ -334,6 +408,7 @@ public class BluetoothSocket implements Closeable {
 				String address, int channel) throws RemoteException {
 			if (!mCanceled) {
 				this.mChannel = channel;
+				mResultReceived = true;
 				notifyAll(); // unblock
 			}
 		}
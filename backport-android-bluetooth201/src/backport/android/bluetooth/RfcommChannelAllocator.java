@@ -0,0 +1,104 @@
+package backport.android.bluetooth;
+
+import java.io.IOException;
+
+/**
+ * Picks RFCOMM channels for listening sockets.
+ *
+ * Channels this process listens on are kept in a bitmap and skipped until
+ * the server socket closes. A channel the stack refused to bind is tried
+ * only after every other candidate for REFUSED_MEMORY_MS, so a listen
+ * usually costs one native bind. Candidates are tried in ascending order, so
+ * channel 1, where clients look when SDP fails, is taken first.
+ */
+final class RfcommChannelAllocator {
+
+	/** how long a refused channel is tried last */
+	static final long REFUSED_MEMORY_MS = 30000;
+
+	private final int mFirst;
+	private final int mLast;
+	private final int mReserved;
+
+	/** bit n set: channel n is listened on by this process */
+	private int mOwned;
+
+	/** when channel n was last refused, or 0 */
+	private final long[] mRefusedAt;
+
+	RfcommChannelAllocator(int first, int last, int... reserved) {
+		if (first < 1 || last > BluetoothSocket.MAX_RFCOMM_CHANNEL
+				|| first > last)
+			throw new IllegalArgumentException();
+
+		mFirst = first;
+		mLast = last;
+		mRefusedAt = new long[last + 1];
+
+		int mask = 0;
+		for (int channel : reserved) {
+			mask |= 1 << channel;
+		}
+		mReserved = mask;
+	}
+
+	/**
+	 * Take the most likely free channel not tried yet and mark it owned.
+	 *
+	 * @param tried
+	 *            bitmap of the channels already tried by this listen
+	 * @return the channel, or -1 if every candidate is owned or tried
+	 */
+	synchronized int acquire(int tried) {
+		long now = System.currentTimeMillis();
+		int best = -1;
+		long bestRefusedAt = Long.MAX_VALUE;
+
+		for (int channel = mFirst; channel <= mLast; channel++) {
+			int bit = 1 << channel;
+
+			if (((mOwned | mReserved | tried) & bit) != 0)
+				continue;
+
+			long refusedAt = mRefusedAt[channel];
+
+			if (refusedAt == 0 || now - refusedAt > REFUSED_MEMORY_MS) {
+				best = channel;
+				break;
+			}
+
+			if (refusedAt < bestRefusedAt) {
+				best = channel;
+				bestRefusedAt = refusedAt;
+			}
+		}
+
+		if (best != -1)
+			mOwned |= 1 << best;
+
+		return best;
+	}
+
+	/** Give back a channel that the stack refused to bind. */
+	synchronized void refuse(int channel) {
+		mOwned &= ~(1 << channel);
+		mRefusedAt[channel] = System.currentTimeMillis();
+	}
+
+	/** Give back a channel whose server socket has closed. */
+	synchronized void release(int channel) {
+		mOwned &= ~(1 << channel);
+		mRefusedAt[channel] = 0;
+	}
+
+	synchronized boolean isOwned(int channel) {
+		return (mOwned & (1 << channel)) != 0;
+	}
+
+	/** @return the exception for a listen that found no channel */
+	synchronized IOException exhausted() {
+		return new IOException("No available channels in " + mFirst + ".."
+				+ mLast + ": " + Integer.bitCount(mOwned)
+				+ " in use by this process, the rest refused by the stack");
+	}
+}
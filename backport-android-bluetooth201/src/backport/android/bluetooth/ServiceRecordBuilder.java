@@ -0,0 +1,187 @@
+package backport.android.bluetooth;
+
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Encodes SDP service records as binary data elements for
+ * Database.addServiceRecord(), in place of the XML string that
+ * Database.advertiseRfcommService() concatenates and bluez parses again.
+ *
+ * A record is a sequence of attribute id / value pairs in ascending id
+ * order. UUIDs derived from the Bluetooth base UUID are written in their 16
+ * or 32 bit form. Built RFCOMM records are cached by name, UUID and channel,
+ * so advertising the same service again costs a map lookup.
+ */
+final class ServiceRecordBuilder {
+
+	static final int ATTR_SERVICE_CLASS_ID_LIST = 0x0001;
+	static final int ATTR_PROTOCOL_DESCRIPTOR_LIST = 0x0004;
+	static final int ATTR_SERVICE_NAME = 0x0100;
+
+	/* data element types, the high five bits of the header byte */
+	private static final int TYPE_UINT = 1;
+	private static final int TYPE_UUID = 3;
+	private static final int TYPE_TEXT = 4;
+	private static final int TYPE_SEQUENCE = 6;
+
+	/* size descriptors, the low three bits of the header byte */
+	private static final int SIZE_1 = 0;
+	private static final int SIZE_2 = 1;
+	private static final int SIZE_4 = 2;
+	private static final int SIZE_16 = 4;
+	private static final int SIZE_LENGTH8 = 5;
+	private static final int SIZE_LENGTH16 = 6;
+
+	/** 00000000-0000-1000-8000-00805F9B34FB */
+	private static final long BASE_UUID_MSB = 0x0000000000001000L;
+	private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+	private static final int CACHE_SIZE = 32;
+
+	private static final Map<String, byte[]> sCache = new LinkedHashMap<String, byte[]>(
+			16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private ServiceRecordBuilder() {
+	}
+
+	/**
+	 * Build the record advertising an RFCOMM service: service class, L2CAP
+	 * and RFCOMM protocol descriptors with the channel, and service name. The
+	 * returned array is shared and must not be modified.
+	 */
+	static byte[] rfcommRecord(String name, UUID uuid, int channel) {
+
+		if (name == null)
+			name = "";
+
+		String key = name + '\n' + uuid + '\n' + channel;
+
+		synchronized (sCache) {
+			byte[] record = sCache.get(key);
+
+			if (record == null) {
+				record = sequence(
+						uint16(ATTR_SERVICE_CLASS_ID_LIST),
+						sequence(uuid(uuid)),
+						uint16(ATTR_PROTOCOL_DESCRIPTOR_LIST),
+						sequence(
+								sequence(uuid(UUIDHelper.L2CAP_PROTOCOL_UUID)),
+								sequence(uuid(UUIDHelper.RFCOMM_PROTOCOL_UUID),
+										uint8(channel))),
+						uint16(ATTR_SERVICE_NAME), text(name));
+				sCache.put(key, record);
+			}
+
+			return record;
+		}
+	}
+
+	static byte[] uint8(int value) {
+		return new byte[] { header(TYPE_UINT, SIZE_1), (byte) value };
+	}
+
+	static byte[] uint16(int value) {
+		return new byte[] { header(TYPE_UINT, SIZE_2), (byte) (value >> 8),
+				(byte) value };
+	}
+
+	static byte[] uuid(UUID uuid) {
+		long msb = uuid.getMostSignificantBits();
+		long lsb = uuid.getLeastSignificantBits();
+
+		if (lsb == BASE_UUID_LSB
+				&& (msb & 0xFFFFFFFFL) == BASE_UUID_MSB) {
+			int value = (int) (msb >>> 32);
+
+			if ((value & 0xFFFF0000) == 0) {
+				return new byte[] { header(TYPE_UUID, SIZE_2),
+						(byte) (value >> 8), (byte) value };
+			}
+
+			byte[] element = new byte[5];
+			element[0] = header(TYPE_UUID, SIZE_4);
+			putBits(element, 1, value, 4);
+			return element;
+		}
+
+		byte[] element = new byte[17];
+		element[0] = header(TYPE_UUID, SIZE_16);
+		putBits(element, 1, msb, 8);
+		putBits(element, 9, lsb, 8);
+		return element;
+	}
+
+	static byte[] text(String value) {
+		byte[] bytes;
+
+		try {
+			bytes = value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+
+		return withLength(TYPE_TEXT, bytes);
+	}
+
+	static byte[] sequence(byte[]... elements) {
+		int length = 0;
+
+		for (byte[] element : elements) {
+			length += element.length;
+		}
+
+		byte[] body = new byte[length];
+		int offset = 0;
+
+		for (byte[] element : elements) {
+			System.arraycopy(element, 0, body, offset, element.length);
+			offset += element.length;
+		}
+
+		return withLength(TYPE_SEQUENCE, body);
+	}
+
+	private static byte[] withLength(int type, byte[] body) {
+		byte[] element;
+
+		if (body.length < 0x100) {
+			element = new byte[2 + body.length];
+			element[0] = header(type, SIZE_LENGTH8);
+			element[1] = (byte) body.length;
+		} else if (body.length < 0x10000) {
+			element = new byte[3 + body.length];
+			element[0] = header(type, SIZE_LENGTH16);
+			element[1] = (byte) (body.length >> 8);
+			element[2] = (byte) body.length;
+		} else {
+			throw new IllegalArgumentException("data element too long");
+		}
+
+		System.arraycopy(body, 0, element, element.length - body.length,
+				body.length);
+		return element;
+	}
+
+	private static byte header(int type, int size) {
+		return (byte) ((type << 3) | size);
+	}
+
+	/** big endian, as all SDP values */
+	private static void putBits(byte[] dst, int offset, long value, int bytes) {
+		for (int i = bytes - 1; i >= 0; i--) {
+			dst[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+}
@@ -0,0 +1,301 @@
+package backport.android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+
+import android.bluetooth.Database;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+/**
+ * Local SDP service records advertised by this process.
+ *
+ * Identical records (same name, UUID and channel) share one entry with a
+ * reference count. A record is added to the SDP database before advertise()
+ * returns. Withdrawals are collected for FLUSH_DELAY_MS and applied together
+ * on a private thread, so a record withdrawn and advertised again in between,
+ * as when a lobby closes and reopens, never leaves the database. flush()
+ * applies them at once.
+ *
+ * Calls to the SDP database are made under a lock of their own, never under
+ * the one that guards the reference counts.
+ *
+ * listenUsingRfcommWithServiceRecord() advertises through the registry and
+ * the server socket withdraws its record when it is closed.
+ */
+public final class ServiceRecordRegistry {
+
+	private static final String TAG = "ServiceRecordRegistry";
+
+	/** how long withdrawals are collected before they are applied */
+	public static final int FLUSH_DELAY_MS = 500;
+
+	private static final ServiceRecordRegistry sInstance = new ServiceRecordRegistry();
+
+	public static ServiceRecordRegistry getInstance() {
+		return sInstance;
+	}
+
+	/**
+	 * One advertised record.
+	 */
+	public static final class Entry {
+
+		private final String mName;
+		private final UUID mUuid;
+		private final int mChannel;
+		private int mRefs;
+		/** SDP handle, or -1 while not in the database */
+		private int mHandle = -1;
+
+		Entry(String name, UUID uuid, int channel) {
+			mName = name;
+			mUuid = uuid;
+			mChannel = channel;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public UUID getUuid() {
+			return mUuid;
+		}
+
+		public int getChannel() {
+			return mChannel;
+		}
+
+		@Override
+		public String toString() {
+			return mName + " " + mUuid + " on channel " + mChannel;
+		}
+	}
+
+	private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+
+	/** serializes calls to the SDP database; taken before the registry lock */
+	private final Object mDatabaseLock = new Object();
+
+	private final Runnable mFlush = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	private Handler mHandler;
+
+	private boolean mFlushScheduled;
+
+	private long mAdded;
+	private long mRemoved;
+	private long mCoalesced;
+
+	private ServiceRecordRegistry() {
+	}
+
+	/**
+	 * Advertise an RFCOMM service, or take another reference to the identical
+	 * record.
+	 *
+	 * @return the entry to pass to withdraw()
+	 */
+	public Entry advertise(String name, UUID uuid, int channel) {
+
+		if (name == null)
+			name = "";
+
+		String key = name + '\n' + uuid + '\n' + channel;
+
+		synchronized (mDatabaseLock) {
+			Entry entry;
+			boolean add = false;
+
+			synchronized (this) {
+				entry = mEntries.get(key);
+
+				if (entry == null) {
+					entry = new Entry(name, uuid, channel);
+					mEntries.put(key, entry);
+				}
+
+				if (entry.mRefs++ == 0) {
+					if (entry.mHandle != -1) {
+						// withdrawn and advertised again before the flush
+						mCoalesced++;
+					} else {
+						add = true;
+					}
+				}
+			}
+
+			if (add)
+				add(entry);
+
+			return entry;
+		}
+	}
+
+	/**
+	 * Advertise several services on one channel in one batch.
+	 */
+	public List<Entry> advertiseAll(String name, Collection<UUID> uuids,
+			int channel) {
+
+		List<Entry> entries = new ArrayList<Entry>(uuids.size());
+
+		synchronized (mDatabaseLock) {
+			for (UUID uuid : uuids) {
+				entries.add(advertise(name, uuid, channel));
+			}
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Drop a reference taken by advertise(). The record is removed once no
+	 * reference is left.
+	 */
+	public synchronized void withdraw(Entry entry) {
+
+		if (entry.mRefs == 0)
+			throw new IllegalStateException("not advertised: " + entry);
+
+		if (--entry.mRefs == 0)
+			scheduleFlush();
+	}
+
+	public synchronized void withdrawAll(Collection<Entry> entries) {
+
+		for (Entry entry : entries) {
+			withdraw(entry);
+		}
+	}
+
+	/**
+	 * @return the records that are advertised
+	 */
+	public synchronized List<Entry> getAdvertised() {
+
+		List<Entry> advertised = new ArrayList<Entry>();
+
+		for (Entry entry : mEntries.values()) {
+			if (entry.mRefs > 0)
+				advertised.add(entry);
+		}
+
+		return advertised;
+	}
+
+	/**
+	 * @return records added to the SDP database
+	 */
+	public synchronized long getAddedCount() {
+		return mAdded;
+	}
+
+	/**
+	 * @return records removed from the SDP database
+	 */
+	public synchronized long getRemovedCount() {
+		return mRemoved;
+	}
+
+	/**
+	 * @return withdrawals cancelled by an advertise before they were applied
+	 */
+	public synchronized long getCoalescedCount() {
+		return mCoalesced;
+	}
+
+	/**
+	 * Apply pending withdrawals now.
+	 */
+	public void flush() {
+
+		synchronized (mDatabaseLock) {
+			List<Entry> withdrawn = new ArrayList<Entry>();
+
+			synchronized (this) {
+				mFlushScheduled = false;
+
+				for (Iterator<Entry> i = mEntries.values().iterator(); i
+						.hasNext();) {
+					Entry entry = i.next();
+
+					if (entry.mRefs == 0) {
+						if (entry.mHandle != -1)
+							withdrawn.add(entry);
+						i.remove();
+					}
+				}
+			}
+
+			for (Entry entry : withdrawn) {
+				remove(entry);
+			}
+		}
+	}
+
+	/** called with mDatabaseLock held */
+	private void add(Entry entry) {
+
+		try {
+			int handle = Database.getInstance().addServiceRecord(
+					ServiceRecordBuilder.rfcommRecord(entry.mName,
+							entry.mUuid, entry.mChannel));
+
+			synchronized (this) {
+				entry.mHandle = handle;
+				mAdded++;
+			}
+		} catch (Exception e) {
+			// devices that cannot reach the system bus; clients fall back to
+			// channel 1.
+			Log.e(TAG, "Not able to register SDP record for " + entry, e);
+		}
+	}
+
+	/** called with mDatabaseLock held */
+	private void remove(Entry entry) {
+
+		try {
+			Log.d(TAG, "Removing service record "
+					+ Integer.toHexString(entry.mHandle));
+			Database.getInstance().removeServiceRecord(entry.mHandle);
+
+			synchronized (this) {
+				mRemoved++;
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "", e);
+		}
+
+		synchronized (this) {
+			entry.mHandle = -1;
+		}
+	}
+
+	/** called with the lock held */
+	private void scheduleFlush() {
+
+		if (mFlushScheduled)
+			return;
+
+		if (mHandler == null) {
+			HandlerThread thread = new HandlerThread(TAG);
+			thread.setDaemon(true);
+			thread.start();
+			mHandler = new Handler(thread.getLooper());
+		}
+
+		mFlushScheduled = true;
+		mHandler.postDelayed(mFlush, FLUSH_DELAY_MS);
+	}
+}
@@ -0,0 +1,61 @@
+package backport.android.bluetooth;
+
+import junit.framework.TestCase;
+
+public class RfcommChannelAllocatorTest extends TestCase {
+
+	public void testAscendingOrder() {
+		RfcommChannelAllocator channels = new RfcommChannelAllocator(1,
+				BluetoothSocket.MAX_RFCOMM_CHANNEL);
+
+		assertEquals(1, channels.acquire(0));
+		assertEquals(2, channels.acquire(0));
+		assertTrue(channels.isOwned(1));
+		assertFalse(channels.isOwned(3));
+	}
+
+	public void testReservedAndTriedChannelsAreSkipped() {
+		RfcommChannelAllocator channels = new RfcommChannelAllocator(1, 30, 1,
+				2);
+
+		assertEquals(4, channels.acquire(1 << 3));
+	}
+
+	public void testRefusedChannelIsTriedLast() {
+		RfcommChannelAllocator channels = new RfcommChannelAllocator(1, 3);
+
+		assertEquals(1, channels.acquire(0));
+		channels.refuse(1);
+
+		assertEquals(2, channels.acquire(0));
+		assertEquals(3, channels.acquire(0));
+		assertEquals(1, channels.acquire(0));
+		assertEquals(-1, channels.acquire(0));
+	}
+
+	public void testReleaseForgetsRefusal() {
+		RfcommChannelAllocator channels = new RfcommChannelAllocator(1, 3);
+		channels.acquire(0);
+		channels.refuse(1);
+		channels.acquire(0);
+
+		channels.release(2);
+		channels.release(1);
+
+		assertFalse(channels.isOwned(2));
+		assertEquals(1, channels.acquire(0));
+	}
+
+	public void testInvalidRange() {
+		int[][] ranges = { { 0, 30 },
+				{ 1, BluetoothSocket.MAX_RFCOMM_CHANNEL + 1 }, { 10, 9 } };
+
+		for (int[] range : ranges) {
+			try {
+				new RfcommChannelAllocator(range[0], range[1]);
+				fail(range[0] + ".." + range[1]);
+			} catch (IllegalArgumentException expected) {
+			}
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package backport.android.bluetooth;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+
+public class ServiceRecordBuilderTest extends TestCase {
+
+	private static final UUID SERIAL_PORT = UUID
+			.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+	public void testUnsignedIntegers() {
+		assertBytes(ServiceRecordBuilder.uint8(5), 0x08, 0x05);
+		assertBytes(ServiceRecordBuilder.uint16(0x0100), 0x09, 0x01, 0x00);
+	}
+
+	public void testUuid16() {
+		assertBytes(ServiceRecordBuilder.uuid(SERIAL_PORT), 0x19, 0x11, 0x01);
+	}
+
+	public void testUuid32() {
+		UUID uuid = UUID.fromString("12345678-0000-1000-8000-00805F9B34FB");
+
+		assertBytes(ServiceRecordBuilder.uuid(uuid), 0x1a, 0x12, 0x34, 0x56,
+				0x78);
+	}
+
+	public void testUuid128() {
+		UUID uuid = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+
+		assertBytes(ServiceRecordBuilder.uuid(uuid), 0x1c, 0xfa, 0x87, 0xc0,
+				0xd0, 0xaf, 0xac, 0x11, 0xde, 0x8a, 0x39, 0x08, 0x00, 0x20,
+				0x0c, 0x9a, 0x66);
+	}
+
+	public void testText() {
+		assertBytes(ServiceRecordBuilder.text("ab"), 0x25, 0x02, 'a', 'b');
+		assertBytes(ServiceRecordBuilder.text("\u00e9"), 0x25, 0x02, 0xc3,
+				0xa9);
+	}
+
+	public void testLongTextUses16BitLength() {
+		char[] chars = new char[300];
+		Arrays.fill(chars, 'x');
+		byte[] element = ServiceRecordBuilder.text(new String(chars));
+
+		assertEquals(303, element.length);
+		assertEquals(0x26, element[0]);
+		assertEquals(0x01, element[1]);
+		assertEquals(0x2c, element[2]);
+	}
+
+	public void testTooLongText() {
+		char[] chars = new char[0x10000];
+		Arrays.fill(chars, 'x');
+
+		try {
+			ServiceRecordBuilder.text(new String(chars));
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	public void testSequence() {
+		assertBytes(ServiceRecordBuilder.sequence(), 0x35, 0x00);
+		assertBytes(ServiceRecordBuilder.sequence(ServiceRecordBuilder
+				.uint8(1), ServiceRecordBuilder.uint8(2)), 0x35, 0x04, 0x08,
+				0x01, 0x08, 0x02);
+	}
+
+	public void testRfcommRecord() {
+		byte[] record = ServiceRecordBuilder.rfcommRecord("Chat",
+				SERIAL_PORT, 3);
+
+		assertBytes(record, 0x35, 0x22,
+				// service class id list: serial port
+				0x09, 0x00, 0x01, 0x35, 0x03, 0x19, 0x11, 0x01,
+				// protocol descriptor list: L2CAP, RFCOMM on channel 3
+				0x09, 0x00, 0x04, 0x35, 0x0c, 0x35, 0x03, 0x19, 0x01, 0x00,
+				0x35, 0x05, 0x19, 0x00, 0x03, 0x08, 0x03,
+				// service name
+				0x09, 0x01, 0x00, 0x25, 0x04, 'C', 'h', 'a', 't');
+	}
+
+	public void testRecordsAreCached() {
+		byte[] record = ServiceRecordBuilder.rfcommRecord("Chat",
+				SERIAL_PORT, 3);
+
+		assertSame(record, ServiceRecordBuilder.rfcommRecord("Chat",
+				SERIAL_PORT, 3));
+		assertNotSame(record, ServiceRecordBuilder.rfcommRecord("Chat",
+				SERIAL_PORT, 4));
+	}
+
+	public void testNullNameIsEmpty() {
+		byte[] record = ServiceRecordBuilder.rfcommRecord(null, SERIAL_PORT,
+				3);
+
+		// the service name comes last
+		assertEquals(0x25, record[record.length - 2]);
+		assertEquals(0x00, record[record.length - 1]);
+	}
+
+	private static void assertBytes(byte[] actual, int... expected) {
+		assertEquals("length", expected.length, actual.length);
+
+		for (int i = 0; i < expected.length; i++)
+			assertEquals("byte " + i, expected[i], actual[i] & 0xff);
+	}
+}